@@ -0,0 +1,62 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.polymap.core.runtime.config.Config;
+import org.polymap.core.runtime.config.Configurable;
+
+import io.mapzone.atlas.AtlasPropertyChangeEvent.Fire;
+
+/**
+ * Tests {@link AtlasPropertyChangeEvent.Fire}: setting the current value again
+ * is not a change.
+ *
+ * @author Falko Bräutigam
+ */
+public class AtlasPropertyChangeEventTest {
+
+    public static class Host
+            extends Configurable {
+        
+        public Config<String>       queryText;
+    }
+
+
+    @Test
+    public void equalValue() throws Exception {
+        Host host = new Host();
+        AtlasSessionState state = new AtlasSessionState();
+        
+        // initial value
+        assertTrue( Fire.isChange( state, host.queryText, "greifswald" ) );
+        host.queryText.set( "greifswald" );
+        
+        // same value: no version, no event
+        assertFalse( Fire.isChange( state, host.queryText, "greifswald" ) );
+        assertFalse( Fire.isChange( state, host.queryText, new String( "greifswald" ) ) );
+        assertEquals( 0, state.version() );
+        assertTrue( state.toString(), state.toString().contains( "unchanged=2" ) );
+        
+        assertTrue( Fire.isChange( state, host.queryText, "wolgast" ) );
+        assertTrue( Fire.isChange( state, host.queryText, null ) );
+    }
+
+}
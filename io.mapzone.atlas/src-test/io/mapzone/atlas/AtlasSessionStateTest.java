@@ -0,0 +1,70 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.mapzone.atlas.AtlasSessionState.Cursor;
+
+/**
+ * Tests {@link AtlasSessionState}.
+ *
+ * @author Falko Bräutigam
+ */
+public class AtlasSessionStateTest {
+
+    @Test
+    public void cursor() throws Exception {
+        AtlasSessionState state = new AtlasSessionState();
+        Cursor cursor = state.cursor( "test" );
+
+        // first pull sees the state, even if null
+        assertTrue( cursor.advance( null ) );
+        assertFalse( cursor.advance( null ) );
+
+        // several changes, one refresh
+        state.changed();
+        state.changed();
+        state.changed();
+        assertTrue( cursor.advance( "greifswald" ) );
+        assertFalse( cursor.advance( "greifswald" ) );
+
+        // changes the consumer does not depend on
+        state.changed();
+        assertFalse( cursor.advance( "greifswald" ) );
+
+        assertEquals( 4, state.version() );
+        assertTrue( state.toString(), state.toString().contains( "events=4" ) );
+        assertTrue( state.toString(), state.toString().contains( "test=2" ) );
+    }
+
+
+    @Test
+    public void initialState() throws Exception {
+        AtlasSessionState state = new AtlasSessionState();
+        state.changed();
+        Cursor cursor = state.cursor( "test", "greifswald" );
+        assertFalse( cursor.advance( "wolgast" ) );
+        state.changed();
+        assertFalse( cursor.advance( "greifswald" ) );
+        state.changed();
+        assertTrue( cursor.advance( "wolgast" ) );
+    }
+
+}
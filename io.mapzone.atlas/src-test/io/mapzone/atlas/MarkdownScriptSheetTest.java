@@ -16,8 +16,11 @@ package io.mapzone.atlas;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -81,6 +84,24 @@ public class MarkdownScriptSheetTest {
         assertEquals( "Test!", sheet.check( "${test + '!'}", monitor ) );
     }
 
+    @Test
+    public void referencedVariables() throws Exception {
+        MarkdownScriptSheet markdown = new MarkdownScriptSheet( 
+                "## $name\n${format(einwohner)} Einwohner, ${defaults(plz,'-')}" );
+        assertEquals( new HashSet( Arrays.asList( "name", "format", "einwohner", "defaults", "plz" ) ), 
+                markdown.referencedVariables() );
+        assertEquals( Collections.EMPTY_SET, new MarkdownScriptSheet( "plain text" ).referencedVariables() );
+    }
+
+    @Test
+    public void compiledScripts() throws Exception {
+        MarkdownScriptSheet compiled = new MarkdownScriptSheet( "$name: ${name + '!'} ${x = 1; x}" ).compile();
+        compiled.setVariable( "name", "Greifswald" );
+        assertEquals( "Greifswald: Greifswald! 1", compiled.build( monitor ) );
+        compiled.setVariable( "name", "Wolgast" );
+        assertEquals( "Wolgast: Wolgast! 1", compiled.build( monitor ) );
+    }
+
     @Test
     public void dateScriptUtils() throws Exception {
         Calendar now = GregorianCalendar.getInstance();
@@ -0,0 +1,134 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.TreeSet;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.json.JSONObject;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+import org.polymap.rhei.fulltext.indexing.ToStringTransformer;
+
+/**
+ * Tests {@link AtlasDocumentTransformer} against the
+ * {@link AtlasFeatureTransformer} -> {@link ToStringTransformer} chain. See
+ * {@link AtlasIndexBenchmark} for the throughput comparison.
+ *
+ * @author Falko Bräutigam
+ */
+public class AtlasDocumentTransformerTest {
+
+    private SimpleFeatureType       schema;
+
+    private SimpleFeatureBuilder    builder;
+
+    private GeometryFactory         gf = new GeometryFactory();
+
+
+    @Before
+    public void setup() throws Exception {
+        schema = DataUtilities.createType( "Orte", "geom:Point,name:String,einwohner:Integer,gegruendet:java.util.Date,ortsteile:java.util.List" );
+        builder = new SimpleFeatureBuilder( schema );
+    }
+
+
+    protected SimpleFeature feature( int i ) {
+        builder.add( gf.createPoint( new Coordinate( i, i ) ) );
+        builder.add( "Greifswald " + i );
+        builder.add( i );
+        builder.add( new Date( 0 ) );
+        builder.add( Arrays.asList( "Eldena", "Wieck" ) );
+        return builder.buildFeature( "Orte." + i );
+    }
+
+
+    @Test
+    public void document() throws Exception {
+        JSONObject doc = new AtlasDocumentTransformer().apply( feature( 1 ) );
+        assertEquals( "Orte.1", doc.getString( FulltextIndex.FIELD_ID ) );
+        assertEquals( "Orte", doc.getString( AtlasDocumentTransformer.FIELD_FEATURETYPE ) );
+        assertEquals( "Greifswald 1", doc.getString( "name" ) );
+        assertEquals( "1", doc.getString( "einwohner" ) );
+        assertFalse( doc.has( "geom" ) );
+    }
+
+
+    @Test
+    public void indexedAttributes() throws Exception {
+        JSONObject doc = new AtlasDocumentTransformer().apply( feature( 1 ), Collections.singleton( "name" ) );
+        assertEquals( "Orte.1", doc.getString( FulltextIndex.FIELD_ID ) );
+        assertEquals( "Greifswald 1", doc.getString( "name" ) );
+        assertFalse( doc.has( "einwohner" ) );
+    }
+
+
+    @Test
+    public void sameFieldsAsJsonChain() throws Exception {
+        SimpleFeature feature = feature( 1 );
+        JSONObject streamed = new AtlasDocumentTransformer().apply( feature );
+        JSONObject chained = (JSONObject)new ToStringTransformer().apply(
+                new AtlasFeatureTransformer().apply( feature ) );
+        // bounds are not provided by the chain
+        streamed.remove( AtlasDocumentTransformer.FIELD_BOUNDS );
+        assertEquals( new TreeSet( Arrays.asList( JSONObject.getNames( chained ) ) ), 
+                new TreeSet( Arrays.asList( JSONObject.getNames( streamed ) ) ) );
+        for (String key : JSONObject.getNames( chained )) {
+            assertEquals( key, chained.get( key ).toString(), streamed.get( key ).toString() );
+        }
+        // Date and Collection values are formatted the same way
+        assertTrue( streamed.has( "gegruendet" ) );
+        assertTrue( streamed.has( "ortsteile" ) );
+    }
+
+
+    @Test
+    public void bounds() throws Exception {
+        String encoded = AtlasDocumentTransformer.encodeBounds( new Envelope( 13.1, 13.5, 54.0, 54.2 ) );
+        float[] bounds = new float[4];
+        assertTrue( AtlasDocumentTransformer.decodeBounds( encoded, bounds, 0 ) );
+        // rounded outwards
+        assertTrue( bounds[0] <= 13.1 && bounds[1] <= 54.0 && bounds[2] >= 13.5 && bounds[3] >= 54.2 );
+        assertFalse( AtlasDocumentTransformer.decodeBounds( "Greifswald", bounds, 0 ) );
+
+        FeatureIdSet ids = new FeatureIdSet.Builder()
+                .add( "Orte.1", bounds )
+                .add( "Orte.2", new float[] {10f, 50f, 10.1f, 50.1f} )
+                .add( "Orte.3" )
+                .build();
+        FeatureIdSet intersecting = ids.intersecting( new Envelope( 13, 14, 54, 55 ) );
+        assertEquals( 2, intersecting.size() );
+        assertTrue( intersecting.contains( "Orte.1" ) );
+        assertTrue( intersecting.contains( "Orte.3" ) );  // unknown bounds
+    }
+
+}
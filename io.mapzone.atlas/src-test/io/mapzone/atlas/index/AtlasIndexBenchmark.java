@@ -0,0 +1,264 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.function.ToIntFunction;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.json.JSONObject;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import org.polymap.rhei.fulltext.indexing.ToStringTransformer;
+
+/**
+ * Micro benchmarks of the indexing code. Not part of the unit test suite; run as
+ * Java application with the test classpath.
+ * <p/>
+ * Every candidate is warmed up and then measured in several rounds; the median
+ * time per operation is reported. The number of operations per round defaults to
+ * 100.000; run with <code>-Datlas.benchmark.ops=1000000</code> for more stable
+ * numbers.
+ * <p/>
+ * {@link #layer()} reads a synthetic layer of {@link #LAYER_SIZE} features that
+ * are created while the layer is read, like a data store does, and reports the
+ * time, the allocated bytes and the GC activity of each transformer.
+ *
+ * @author Falko Bräutigam
+ */
+public class AtlasIndexBenchmark {
+
+    private static final int        OPS = Integer.getInteger( "atlas.benchmark.ops", 100000 );
+
+    private static final int        WARMUP_ROUNDS = 3;
+
+    private static final int        ROUNDS = 7;
+
+    /** The number of features of the synthetic layer of {@link #layer()}. */
+    private static final int        LAYER_SIZE = Integer.getInteger( "atlas.benchmark.layerSize", 1000000 );
+
+    /** Sink for the results, so that the JIT cannot drop the work. */
+    private static long             sink;
+
+
+    public static void main( String[] args ) throws Exception {
+        new AtlasIndexBenchmark().transformers();
+        new AtlasIndexBenchmark().layer();
+        new AtlasIndexBenchmark().tokenizers();
+        System.out.println( "(sink: " + sink + ")" );
+    }
+
+
+    /**
+     * Runs the given operation {@link #OPS} times per round.
+     *
+     * @return The median nanoseconds per operation.
+     */
+    protected static double measure( String label, ToIntFunction<Integer> op ) {
+        long[] times = new long[ROUNDS];
+        for (int round=-WARMUP_ROUNDS; round<ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i=0; i<OPS; i++) {
+                sink += op.applyAsInt( i );
+            }
+            if (round >= 0) {
+                times[round] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort( times );
+        double result = (double)times[ROUNDS / 2] / OPS;
+        System.out.println( String.format( "%-40s %10.1f ns/op", label, result ) );
+        return result;
+    }
+
+
+    /**
+     * Reads all features of the given layer and passes them to the given
+     * operation. Reports the time, the bytes allocated by the calling thread (if
+     * the JVM supports this) and the GC runs and time of the whole JVM.
+     */
+    protected static void measureLayer( String label, SyntheticLayer layer, ToIntFunction<SimpleFeature> op ) {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean hotspot = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean)threads : null;
+        long thread = Thread.currentThread().getId();
+        System.gc();
+        long gcCount = 0, gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gc.getCollectionCount();
+            gcTime -= gc.getCollectionTime();
+        }
+        long allocated = hotspot != null ? -hotspot.getThreadAllocatedBytes( thread ) : 0;
+        long start = System.nanoTime();
+        try (
+            SimpleFeatureIterator it = layer.features();
+        ){
+            while (it.hasNext()) {
+                sink += op.applyAsInt( it.next() );
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated += hotspot != null ? hotspot.getThreadAllocatedBytes( thread ) : 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+        }
+        System.out.println( String.format( "%-40s %10d ms, %8.0f features/s, %6d bytes/feature, %4d GCs (%d ms)", 
+                label, elapsed / 1000000, layer.size() * 1e9 / elapsed, 
+                hotspot != null ? allocated / layer.size() : -1, gcCount, gcTime ) );
+    }
+
+
+    protected static SimpleFeatureType schema() throws Exception {
+        return DataUtilities.createType( "Orte",
+                "geom:Point,name:String,einwohner:Integer,gegruendet:java.util.Date,ortsteile:java.util.List" );
+    }
+
+
+    protected static SimpleFeature feature( SimpleFeatureBuilder builder, GeometryFactory gf, int i ) {
+        builder.add( gf.createPoint( new Coordinate( i, i ) ) );
+        builder.add( "Greifswald " + i );
+        builder.add( i );
+        builder.add( new Date( 0 ) );
+        builder.add( Arrays.asList( "Eldena", "Wieck" ) );
+        return builder.buildFeature( "Orte." + i );
+    }
+
+
+    /**
+     * A layer of synthetic features that are created while the layer is read,
+     * so that just one feature is in memory at a time.
+     */
+    protected static class SyntheticLayer
+            extends BaseSimpleFeatureCollection {
+
+        private int         size;
+
+        public SyntheticLayer( SimpleFeatureType schema, int size ) {
+            super( schema );
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public SimpleFeatureIterator features() {
+            SimpleFeatureBuilder builder = new SimpleFeatureBuilder( getSchema() );
+            GeometryFactory gf = new GeometryFactory();
+            return new SimpleFeatureIterator() {
+                private int     i;
+                @Override public boolean hasNext() { return i < size; }
+                @Override public SimpleFeature next() { return feature( builder, gf, i++ ); }
+                @Override public void close() {}
+            };
+        }
+    }
+
+
+    // transformers ***************************************
+
+    /**
+     * {@link AtlasDocumentTransformer} vs. the {@link AtlasFeatureTransformer} ->
+     * {@link ToStringTransformer} chain.
+     */
+    public void transformers() throws Exception {
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder( schema() );
+        GeometryFactory gf = new GeometryFactory();
+        SimpleFeature[] features = new SimpleFeature[1000];
+        for (int i=0; i<features.length; i++) {
+            features[i] = feature( builder, gf, i );
+        }
+        AtlasFeatureTransformer jsonTransformer = new AtlasFeatureTransformer();
+        ToStringTransformer toStringTransformer = new ToStringTransformer();
+        AtlasDocumentTransformer documentTransformer = new AtlasDocumentTransformer();
+
+        measure( "transform: chained", i ->
+                ((JSONObject)toStringTransformer.apply( jsonTransformer.apply( features[i % features.length] ) )).length() );
+        measure( "transform: one-pass", i ->
+                documentTransformer.apply( features[i % features.length] ).length() );
+    }
+
+
+    /**
+     * The transformers on a layer of {@link #LAYER_SIZE} features, read like the
+     * {@link LayerIndexer} does. "read only" is the cost of creating the
+     * features, which is part of the other results.
+     */
+    public void layer() throws Exception {
+        SyntheticLayer layer = new SyntheticLayer( schema(), LAYER_SIZE );
+        AtlasFeatureTransformer jsonTransformer = new AtlasFeatureTransformer();
+        ToStringTransformer toStringTransformer = new ToStringTransformer();
+        AtlasDocumentTransformer documentTransformer = new AtlasDocumentTransformer();
+
+        for (int run=0; run<2; run++) {  // first run warms up
+            measureLayer( "layer: read only", layer, feature -> feature.getID().length() );
+            measureLayer( "layer: chained", layer, feature ->
+                    ((JSONObject)toStringTransformer.apply( jsonTransformer.apply( feature ) )).length() );
+            measureLayer( "layer: one-pass", layer, feature ->
+                    documentTransformer.apply( feature ).length() );
+        }
+    }
+
+
+    // tokenizers *****************************************
+
+    /**
+     * The analysis of the index before and after Unicode delimiters and
+     * {@link GermanTokenFilter folding}: the old tokenizer + lower case vs. the
+     * {@link AtlasTokenizer} + lower case + fold.
+     */
+    public void tokenizers() throws Exception {
+        String[] texts = new String[1000];
+        for (int i=0; i<texts.length; i++) {
+            texts[i] = "Greifswald, Markt " + (i % 100) + "; " 
+                    + (i % 10 == 0 ? "Müritzstraße " : "Domstraße ")
+                    + "„St. Nikolai“ (1280–1390)";
+        }
+        AtlasTokenizer before = new AtlasTokenizer() {
+            @Override
+            protected boolean isTokenCharUnicode( int c ) {
+                return true;
+            }
+        };
+        AtlasTokenizer after = new AtlasTokenizer();
+        GermanTokenFilter filter = new GermanTokenFilter();
+
+        measure( "tokenize: before", i -> {
+            int[] count = {0};
+            before.tokenize( texts[i % texts.length], token -> count[0] += token.toLowerCase().length() );
+            return count[0];
+        });
+        measure( "tokenize: after (unicode, fold)", i -> {
+            int[] count = {0};
+            after.tokenize( texts[i % texts.length], token -> count[0] += filter.apply( token.toLowerCase() ).length() );
+            return count[0];
+        });
+    }
+
+}
@@ -0,0 +1,98 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link FeatureIdFilter}.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureIdFilterTest {
+
+    @Test
+    public void numeric() throws Exception {
+        FeatureIdFilter filter = new FeatureIdFilter( new FeatureIdSet.Builder()
+                .add( "Orte.30" ).add( "Orte.1" ).add( "Orte.2000000000000" ).build() );
+        assertTrue( filter.toString(), filter.toString().contains( "Orte.*" ) );
+        assertEquals( 3, filter.size() );
+        assertTrue( filter.contains( "Orte.1" ) );
+        assertTrue( filter.contains( "Orte.2000000000000" ) );
+        assertFalse( filter.contains( "Orte.2" ) );
+        assertFalse( filter.contains( "Orte.01" ) );
+        assertFalse( filter.contains( "Orte.x" ) );
+        assertFalse( filter.contains( "Seen.1" ) );
+        assertFalse( filter.contains( "Orte.1.1" ) );
+        assertFalse( filter.contains( "1" ) );
+    }
+
+
+    @Test
+    public void nonNumeric() throws Exception {
+        FeatureIdFilter filter = new FeatureIdFilter( new FeatureIdSet.Builder()
+                .add( "Orte.1" ).add( "Orte.a" ).add( "Orte.007" ).build() );
+        assertFalse( filter.toString(), filter.toString().contains( "Orte.*" ) );
+        assertTrue( filter.contains( "Orte.1" ) );
+        assertTrue( filter.contains( "Orte.a" ) );
+        assertTrue( filter.contains( "Orte.007" ) );
+        assertFalse( filter.contains( "Orte.7" ) );
+
+        // different prefixes
+        filter = new FeatureIdFilter( new FeatureIdSet.Builder().add( "Orte.1" ).add( "Seen.2" ).build() );
+        assertTrue( filter.contains( "Seen.2" ) );
+        assertFalse( filter.contains( "Seen.1" ) );
+    }
+
+
+    @Test
+    public void evaluate() throws Exception {
+        SimpleFeatureType schema = DataUtilities.createType( "Orte", "geom:Point,name:String" );
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder( schema );
+        FeatureIdFilter filter = new FeatureIdFilter( new FeatureIdSet.Builder()
+                .add( "Orte.1" ).add( "Orte.3" ).build() );
+        int count = 0;
+        for (int i=0; i<5; i++) {
+            builder.set( "name", "Ort" + i );
+            count += filter.evaluate( builder.buildFeature( "Orte." + i ) ) ? 1 : 0;
+        }
+        assertEquals( 2, count );
+        assertFalse( filter.evaluate( "Orte.1" ) );
+    }
+
+
+    @Test
+    public void identifiers() throws Exception {
+        FeatureIdFilter filter = new FeatureIdFilter( new FeatureIdSet.Builder()
+                .add( "Orte.3" ).add( "Orte.1" ).build() );
+        assertEquals( 2, filter.getIdentifiers().size() );
+        Set<Object> expected = new HashSet();
+        expected.add( "Orte.1" );
+        expected.add( "Orte.3" );
+        assertEquals( expected, filter.getIDs() );
+    }
+
+}
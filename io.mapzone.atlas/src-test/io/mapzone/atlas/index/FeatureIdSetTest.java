@@ -0,0 +1,81 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Tests {@link FeatureIdSet}.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureIdSetTest {
+
+    @Test
+    public void top() throws Exception {
+        FeatureIdSet ids = new FeatureIdSet.Builder()
+                .add( "Orte.3" ).add( "Orte.1" ).add( "Orte.3" ).add( "Orte.2" )
+                .build();
+        assertEquals( 3, ids.size() );
+        assertTrue( ids.contains( "Orte.2" ) );
+        // hit order, duplicates keep their best rank
+        assertEquals( Arrays.asList( "Orte.3", "Orte.1", "Orte.2" ), ids.top( 10 ) );
+        assertEquals( Arrays.asList( "Orte.3", "Orte.1" ), ids.top( 2 ) );
+        assertEquals( 0, FeatureIdSet.EMPTY.top( 10 ).size() );
+        assertEquals( 0, ids.top( 0 ).size() );
+    }
+
+
+    @Test
+    public void topOfMany() throws Exception {
+        List<String> hits = new ArrayList();
+        for (int i=0; i<1000; i++) {
+            hits.add( "Orte." + i );
+        }
+        Collections.shuffle( hits, new Random( 1 ) );
+        FeatureIdSet.Builder builder = new FeatureIdSet.Builder();
+        hits.forEach( id -> builder.add( id ) );
+        FeatureIdSet ids = builder.build();
+        assertEquals( hits.subList( 0, 1 ), ids.top( 1 ) );
+        assertEquals( hits.subList( 0, 50 ), ids.top( 50 ) );
+        assertEquals( hits, ids.top( 1000 ) );
+    }
+
+
+    @Test
+    public void intersectingKeepsRanks() throws Exception {
+        FeatureIdSet ids = new FeatureIdSet.Builder()
+                .add( "Orte.3", new float[] {10, 10, 11, 11} )
+                .add( "Orte.1", new float[] {0, 0, 1, 1} )
+                .add( "Orte.2" )
+                .add( "Orte.0", new float[] {0.5f, 0.5f, 2, 2} )
+                .build();
+        FeatureIdSet intersecting = ids.intersecting( new Envelope( 0, 5, 0, 5 ) );
+        // unknown bounds are kept
+        assertEquals( Arrays.asList( "Orte.1", "Orte.2", "Orte.0" ), intersecting.top( 10 ) );
+    }
+
+}
@@ -0,0 +1,78 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link GermanTokenFilter} and {@link AtlasTokenizer}.
+ *
+ * @author Falko Bräutigam
+ */
+public class GermanTokenFilterTest {
+
+    private AtlasTokenizer          tokenizer = new AtlasTokenizer();
+
+    private GermanTokenFilter       filter = new GermanTokenFilter();
+
+
+    /**
+     * Splits the given text like the index does, optionally without folding.
+     */
+    protected List<String> tokenize( String text, boolean fold ) {
+        List<String> result = new ArrayList();
+        tokenizer.tokenize( text, token -> {
+            String term = token.toLowerCase();
+            result.add( fold ? filter.apply( term ) : term );
+        });
+        return result;
+    }
+
+
+    @Test
+    public void fold() throws Exception {
+        assertEquals( "mueritz", filter.apply( "müritz" ) );
+        assertEquals( "Mueritz", filter.apply( "Müritz" ) );
+        assertEquals( "strasse", filter.apply( "straße" ) );
+        assertEquals( "chateau", filter.apply( "château" ) );
+        // decomposed umlaut
+        assertEquals( "mueritz", filter.apply( "mu\u0308ritz" ) );
+        // query syntax is kept
+        assertEquals( "name:Mue* AND \"Strasse\"", GermanTokenFilter.fold( "name:Mü* AND \"Straße\"" ) );
+        // nothing to fold
+        String ascii = "greifswald";
+        assertSame( ascii, filter.apply( ascii ) );
+    }
+
+
+    @Test
+    public void delimiters() throws Exception {
+        assertEquals( 2, tokenize( "Greifswald Markt", true ).size() );
+        assertEquals( 2, tokenize( "Usedom–Wollin", true ).size() );
+        assertEquals( "dom", tokenize( "„Dom“", true ).get( 0 ) );
+        assertTrue( tokenizer.isTokenChar( 'ü' ) );
+        assertTrue( tokenizer.isTokenChar( '/' ) );
+        assertFalse( tokenizer.isTokenChar( '»' ) );
+    }
+
+}
@@ -0,0 +1,111 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link IndexMetadata} and the {@link AtlasIndex#startupDelay()} it
+ * decides.
+ *
+ * @author Falko Bräutigam
+ */
+public class IndexMetadataTest {
+
+    private File            f;
+
+    private Instant         now = Instant.now();
+
+
+    @Before
+    public void setUp() throws Exception {
+        f = File.createTempFile( "metadata", ".properties" );
+        f.delete();
+    }
+
+
+    @After
+    public void tearDown() {
+        f.delete();
+    }
+
+
+    /**
+     * A consistent index, built an hour ago.
+     */
+    protected IndexMetadata consistent() throws Exception {
+        IndexMetadata metadata = new IndexMetadata( f );
+        metadata.setBuildTime( now.minus( Duration.ofHours( 1 ) ) ).setConsistent( true ).store();
+        return metadata;
+    }
+
+
+    @Test
+    public void dirty() throws Exception {
+        IndexMetadata metadata = consistent();
+        assertFalse( metadata.hasDirty() );
+        
+        metadata.setDirty( "layer1", true ).store();
+        assertTrue( new IndexMetadata( f ).hasDirty() );
+        assertTrue( new IndexMetadata( f ).isDirty( "layer1" ) );
+        assertFalse( new IndexMetadata( f ).isDirty( "layer2" ) );
+        
+        metadata.setDirty( "layer1", false ).store();
+        assertFalse( new IndexMetadata( f ).hasDirty() );
+    }
+
+
+    @Test
+    public void startupConsistent() throws Exception {
+        consistent();
+        Duration delay = AtlasIndex.startupDelay( new IndexMetadata( f ), 1000, now );
+        assertEquals( Duration.ofHours( 23 ), delay );
+    }
+
+
+    @Test
+    public void startupInconsistent() throws Exception {
+        consistent().setConsistent( false ).store();
+        assertEquals( Duration.ZERO, AtlasIndex.startupDelay( new IndexMetadata( f ), 1000, now ) );
+        
+        consistent();
+        assertEquals( Duration.ZERO, AtlasIndex.startupDelay( new IndexMetadata( f ), 0, now ) );
+    }
+
+
+    /**
+     * A crash before the UpdaterJob has applied reported modifications leaves a
+     * consistent index with a dirty layer; this must not be served as is until
+     * the next regular check.
+     */
+    @Test
+    public void startupDirty() throws Exception {
+        consistent().setDirty( "layer1", true ).store();
+        Duration delay = AtlasIndex.startupDelay( new IndexMetadata( f ), 1000, now );
+        assertTrue( delay.toString(), delay.compareTo( Duration.ofMinutes( 1 ) ) < 0 );
+    }
+
+}
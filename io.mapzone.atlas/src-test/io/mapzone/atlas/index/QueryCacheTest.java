@@ -0,0 +1,118 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tests {@link QueryCache}: a burst of parallel identical queries must run just
+ * one search.
+ *
+ * @author Falko Bräutigam
+ */
+public class QueryCacheTest {
+
+    private static final Log log = LogFactory.getLog( QueryCacheTest.class );
+
+    private static final int        BURST = 200;
+
+    private ExecutorService         executor = Executors.newFixedThreadPool( BURST );
+
+    private AtomicInteger           searches = new AtomicInteger();
+
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * Simulates a Lucene search that takes some time.
+     */
+    protected SearchResult search() throws InterruptedException {
+        searches.incrementAndGet();
+        Thread.sleep( 200 );
+        return new SearchResult.Builder().add( "Orte", "Orte.1" ).build();
+    }
+
+
+    protected List<SearchResult> burst( Callable<SearchResult> task ) throws Exception {
+        CountDownLatch start = new CountDownLatch( 1 );
+        List<Future<SearchResult>> futures = new ArrayList();
+        for (int i=0; i<BURST; i++) {
+            futures.add( executor.submit( () -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        start.countDown();
+        List<SearchResult> results = new ArrayList();
+        for (Future<SearchResult> future : futures) {
+            results.add( future.get() );
+        }
+        return results;
+    }
+
+
+    @Test
+    public void singleFlight() throws Exception {
+        // without cache: every request searches
+        burst( () -> search() );
+        int uncached = searches.getAndSet( 0 );
+        assertEquals( BURST, uncached );
+
+        // with cache: concurrent misses wait for one search
+        QueryCache cache = new QueryCache();
+        List<SearchResult> results = burst( () -> cache.get( "greifswald", () -> search() ) );
+        log.info( BURST + " parallel queries: uncached=" + uncached + " searches, cached=" + searches.get() + " searches" );
+        assertEquals( 1, searches.get() );
+        for (SearchResult result : results) {
+            assertSame( results.get( 0 ), result );
+        }
+        assertEquals( 1, cache.stats().loadCount() );
+    }
+
+
+    @Test
+    public void invalidate() throws Exception {
+        QueryCache cache = new QueryCache();
+        cache.get( "greifswald", () -> search() );
+        cache.get( "greifswald", () -> search() );
+        assertEquals( 1, searches.get() );
+
+        cache.invalidate();
+        assertEquals( 1, cache.generation() );
+        cache.get( "greifswald", () -> search() );
+        assertEquals( 2, searches.get() );
+    }
+
+}
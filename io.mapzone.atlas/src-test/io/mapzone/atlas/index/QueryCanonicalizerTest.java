@@ -0,0 +1,62 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link QueryCanonicalizer}.
+ *
+ * @author Falko Bräutigam
+ */
+public class QueryCanonicalizerTest {
+
+    private QueryCanonicalizer      canonicalizer = new QueryCanonicalizer();
+
+
+    @Test
+    public void simpleTerms() throws Exception {
+        assertEquals( "greifswald", canonicalizer.canonical( "Greifswald" ) );
+        assertEquals( "greifswald", canonicalizer.canonical( " greifswald " ) );
+        assertEquals( "greifswald", canonicalizer.canonical( "GREIFSWALD" ) );
+        assertEquals( "greifswald markt", canonicalizer.canonical( "Markt  Greifswald markt" ) );
+        assertEquals( "greifswald markt", canonicalizer.canonical( "greifswald, Markt." ) );
+        assertEquals( "", canonicalizer.canonical( "  " ) );
+    }
+
+
+    @Test
+    public void germanTerms() throws Exception {
+        assertEquals( "mueritz", canonicalizer.canonical( "Müritz" ) );
+        assertEquals( "mueritz", canonicalizer.canonical( "Mueritz" ) );
+        assertEquals( "kirche mueritz", canonicalizer.canonical( "Die Kirche an der Müritz" ) );
+        // just stop words
+        assertEquals( "an der", canonicalizer.canonical( "an der" ) );
+        assertEquals( "Mue*", canonicalizer.canonical( "Mü*" ) );
+    }
+
+
+    @Test
+    public void luceneSyntax() throws Exception {
+        assertEquals( "Greif*", canonicalizer.canonical( " Greif* " ) );
+        assertEquals( "\"Markt Greifswald\"", canonicalizer.canonical( "\"Markt Greifswald\"" ) );
+        assertEquals( "name:Greifswald", canonicalizer.canonical( "name:Greifswald" ) );
+        assertEquals( "Markt AND Greifswald", canonicalizer.canonical( "Markt AND Greifswald" ) );
+        assertEquals( "Markt -Greifswald", canonicalizer.canonical( "Markt -Greifswald" ) );
+    }
+
+}
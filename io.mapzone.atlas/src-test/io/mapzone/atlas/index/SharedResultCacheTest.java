@@ -0,0 +1,65 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Tests {@link SharedResultCache}.
+ *
+ * @author Falko Bräutigam
+ */
+public class SharedResultCacheTest {
+
+    @Test
+    public void quantize() throws Exception {
+        Envelope extent = new Envelope( 0.3, 0.7, 0, 0.2 );
+        Envelope quantized = SharedResultCache.quantize( extent );
+        assertTrue( quantized.contains( extent ) );
+        assertEquals( new Envelope( 0.25, 0.75, 0, 0.25 ), quantized );
+        // a small pan snaps to the same grid
+        assertEquals( quantized, SharedResultCache.quantize( new Envelope( 0.31, 0.71, 0.01, 0.21 ) ) );
+        // empty extent
+        assertTrue( SharedResultCache.quantize( new Envelope() ).isNull() );
+    }
+
+
+    @Test
+    public void sharedByGeneration() throws Exception {
+        SharedResultCache cache = new SharedResultCache();
+        AtomicInteger loads = new AtomicInteger();
+        FeatureIdSet ids = new FeatureIdSet.Builder().add( "Orte.1" ).build();
+        Envelope quantized = SharedResultCache.quantize( new Envelope( 0, 1, 0, 1 ) );
+
+        FeatureIdSet first = cache.get( 1, "greifswald", "Orte", quantized, () -> { loads.incrementAndGet(); return ids; } );
+        FeatureIdSet second = cache.get( 1, "greifswald", "Orte", quantized, () -> { loads.incrementAndGet(); return ids; } );
+        assertSame( first, second );
+        assertSame( first.toFilter(), second.toFilter() );
+        assertEquals( 1, loads.get() );
+
+        cache.get( 2, "greifswald", "Orte", quantized, () -> { loads.incrementAndGet(); return ids; } );
+        cache.get( 2, "greifswald", "Seen", quantized, () -> { loads.incrementAndGet(); return ids; } );
+        assertEquals( 3, loads.get() );
+    }
+
+}
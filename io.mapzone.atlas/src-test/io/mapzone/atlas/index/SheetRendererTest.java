@@ -0,0 +1,49 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.json.JSONObject;
+
+import org.junit.Test;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+
+import io.mapzone.atlas.sheet.MarkdownScriptSheet.LayerSheet;
+
+/**
+ * Tests {@link SheetRenderer} and the documents of the {@link SheetStore}.
+ *
+ * @author Falko Bräutigam
+ */
+public class SheetRendererTest {
+
+    @Test
+    public void texts() throws Exception {
+        String title = "## Greifswald\nMüritzstraße 1, „Dom“ – 12.000 Einwohner";
+        JSONObject doc = SheetStore.document( "layer1", "Orte.1", new String[] {title, null} );
+        assertEquals( AtlasDocumentTransformer.documentId( "layer1", "Orte.1" ), doc.getString( FulltextIndex.FIELD_ID ) );
+        assertEquals( "layer1", AtlasDocumentTransformer.layerIdOf( doc ) );
+        // stored as is
+        assertEquals( title, doc.getString( SheetRenderer.fieldOf( LayerSheet.TITLE ) ) );
+        
+        String[] texts = SheetRenderer.texts( doc );
+        assertEquals( title, texts[0] );
+        assertNull( texts[1] );
+    }
+
+}
@@ -0,0 +1,179 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import java.io.File;
+
+import org.json.JSONObject;
+
+import org.junit.Test;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+
+import org.polymap.model2.test.Timer;
+
+/**
+ * Tests {@link TermSuggester}.
+ *
+ * @author Falko Bräutigam
+ */
+public class TermSuggesterTest {
+
+    private static final Log log = LogFactory.getLog( TermSuggesterTest.class );
+
+
+    protected TermSuggester suggester() {
+        return new TermSuggester.Builder()
+                .addText( "Greifswald, Markt 1" )
+                .addText( "Greifswald Dom St. Nikolai" )
+                .addText( "Grimmen Markt" )
+                .addText( "Greifswalder Bodden" )
+                .build();
+    }
+
+
+    @Test
+    public void propose() throws Exception {
+        TermSuggester suggester = suggester();
+        assertEquals( Arrays.asList( "greifswald", "greifswalder", "grimmen" ), suggester.propose( "g", 10 ) );
+        assertEquals( Arrays.asList( "greifswald", "greifswalder" ), suggester.propose( "gre", 10 ) );
+        assertEquals( Arrays.asList( "greifswald" ), suggester.propose( "greifswald", 1 ) );
+        assertEquals( Arrays.asList( "markt" ), suggester.propose( "mar", 10 ) );
+        assertEquals( Collections.EMPTY_LIST, suggester.propose( "x", 10 ) );
+        assertEquals( Collections.EMPTY_LIST, suggester.propose( "xyz", 10 ) );
+        // single chars are not proposed
+        assertEquals( Collections.EMPTY_LIST, suggester.propose( "1", 10 ) );
+    }
+
+
+    @Test
+    public void spellings() throws Exception {
+        TermSuggester suggester = new TermSuggester.Builder()
+                .addText( "Domstraße" )
+                .addText( "Domstrasse Müritz" )
+                .build();
+        assertEquals( Arrays.asList( "domstraße" ), suggester.propose( "domstr", 10 ) );
+        assertEquals( Arrays.asList( "müritz" ), suggester.propose( "mue", 10 ) );
+        // survives update and merge
+        TermSuggester updated = suggester.update( new TermSuggester.Builder().addText( "Müggelsee Müggelsee" ) );
+        assertEquals( Arrays.asList( "müggelsee", "müritz" ), updated.propose( "mue", 10 ) );
+        TermSuggester merged = updated.merge( new TermSuggester.Builder() );
+        assertEquals( Arrays.asList( "müggelsee", "müritz" ), merged.propose( "mue", 10 ) );
+    }
+
+
+    @Test
+    public void merge() throws Exception {
+        TermSuggester suggester = suggester().merge( new TermSuggester.Builder()
+                .addText( "Grimmen Grimmen Grimmen" ) );
+        assertEquals( Arrays.asList( "grimmen", "greifswald", "greifswalder" ), suggester.propose( "g", 10 ) );
+    }
+
+
+    @Test
+    public void update() throws Exception {
+        TermSuggester suggester = suggester();
+        TermSuggester updated = suggester.update( new TermSuggester.Builder()
+                .addText( "Grimmen Grimmen Grimmen Gristow" ) );
+        assertEquals( suggester.size(), updated.size() );
+        assertEquals( Arrays.asList( "grimmen", "greifswald", "greifswalder", "gristow" ), updated.propose( "g", 10 ) );
+        assertEquals( Arrays.asList( "grimmen", "gristow" ), updated.propose( "gri", 10 ) );
+        long deadline = System.nanoTime() + 1000000000L;
+        assertEquals( Arrays.asList( "gristow" ), updated.similar( "gristov", 1, 10, deadline ) );
+    }
+
+
+    @Test
+    public void remove() throws Exception {
+        JSONObject doc = new JSONObject();
+        doc.put( FulltextIndex.FIELD_ID, "Orte.1" );
+        doc.put( "name", "Greifswalder Bodden" );
+        TermSuggester suggester = suggester();
+        TermSuggester updated = suggester.update( new TermSuggester.Builder().remove( doc ) );
+        assertEquals( Arrays.asList( "greifswald", "grimmen" ), updated.propose( "g", 10 ) );
+        assertEquals( Collections.EMPTY_LIST, updated.propose( "bod", 10 ) );
+        // merged into the arrays
+        TermSuggester merged = updated.merge( new TermSuggester.Builder() );
+        assertEquals( suggester.size() - 2, merged.size() );
+        assertEquals( Arrays.asList( "greifswald", "grimmen" ), merged.propose( "g", 10 ) );
+    }
+
+
+    @Test
+    public void similar() throws Exception {
+        TermSuggester suggester = suggester();
+        long deadline = System.nanoTime() + 1000000000L;
+        assertEquals( Arrays.asList( "greifswald", "greifswalder" ), suggester.similar( "greifswalde", 1, 10, deadline ) );
+        assertEquals( Arrays.asList( "greifswald" ), suggester.similar( "grefswald", 1, 10, deadline ) );
+        assertEquals( Arrays.asList( "markt" ), suggester.similar( "markt", 1, 10, deadline ) );
+        assertEquals( Arrays.asList( "grimmen" ), suggester.similar( "grimen", 1, 10, deadline ) );
+        // first char must match
+        assertEquals( Collections.EMPTY_LIST, suggester.similar( "kreifswald", 2, 10, deadline ) );
+        // deadline passed
+        assertEquals( Collections.EMPTY_LIST, suggester.similar( "grefswald", 2, 10, System.nanoTime() - 1 ) );
+    }
+
+
+    @Test
+    public void storeAndLoad() throws Exception {
+        File f = File.createTempFile( "suggest-", ".gz" );
+        try {
+            TermSuggester suggester = suggester();
+            suggester.store( f );
+            TermSuggester loaded = TermSuggester.load( f );
+            assertEquals( suggester.size(), loaded.size() );
+            assertEquals( suggester.propose( "g", 10 ), loaded.propose( "g", 10 ) );
+
+            suggester = new TermSuggester.Builder().addText( "Domstraße" ).build();
+            suggester.store( f );
+            assertEquals( Arrays.asList( "domstraße" ), TermSuggester.load( f ).propose( "dom", 10 ) );
+        }
+        finally {
+            f.delete();
+        }
+    }
+
+
+    @Test
+    public void performance() throws Exception {
+        TermSuggester.Builder builder = new TermSuggester.Builder();
+        for (int i=0; i<200000; i++) {
+            builder.addText( "ort" + Integer.toString( i, 36 ) + " strasse" + (i % 1000) );
+        }
+        Timer timer = Timer.startNow();
+        TermSuggester suggester = builder.build();
+        log.info( suggester.size() + " terms, build: " + timer.elapsedTime() + "ms" );
+
+        timer = Timer.startNow();
+        int count = 0;
+        for (String prefix : new String[] {"o", "or", "ort", "ort1", "s", "st", "str", "strasse1"}) {
+            for (int i=0; i<1000; i++) {
+                count += suggester.propose( prefix, 10 ).size();
+            }
+        }
+        log.info( "8000 proposals: " + timer.elapsedTime() + "ms" );
+        assertTrue( count > 0 );
+    }
+
+}
@@ -0,0 +1,59 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Optional;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultEngineeringCRS;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ExtentQuantizer}.
+ *
+ * @author Falko Bräutigam
+ */
+public class ExtentQuantizerTest {
+
+    protected ReferencedEnvelope extent( double minX, double maxX, double minY, double maxY ) {
+        return new ReferencedEnvelope( minX, maxX, minY, maxY, DefaultEngineeringCRS.CARTESIAN_2D );
+    }
+
+
+    @Test
+    public void hysteresis() throws Exception {
+        ExtentQuantizer quantizer = new ExtentQuantizer();
+        assertEquals( 16d, ExtentQuantizer.cellSize( extent( 0, 1024, 0, 512 ) ), 0 );
+
+        // first extent is always published, snapped outwards to the grid
+        assertEquals( Optional.of( extent( 0, 1024, 0, 512 ) ), quantizer.apply( extent( 4, 1020, 4, 508 ) ) );
+        // tiny pans inside the published extent are skipped
+        assertFalse( quantizer.apply( extent( 6, 1022, 6, 510 ) ).isPresent() );
+        assertFalse( quantizer.apply( extent( 2, 1018, 2, 506 ) ).isPresent() );
+        // bigger pan is published
+        assertEquals( Optional.of( extent( 16, 1056, 0, 512 ) ), quantizer.apply( extent( 20, 1044, 0, 512 ) ) );
+        assertFalse( quantizer.apply( extent( 18, 1042, 0, 512 ) ).isPresent() );
+        // tiny pan out of the published extent is published
+        assertEquals( Optional.of( extent( 0, 1040, 0, 512 ) ), quantizer.apply( extent( 10, 1034, 0, 512 ) ) );
+        // zoom is published
+        assertTrue( quantizer.apply( extent( 16, 528, 0, 256 ) ).isPresent() );
+    }
+
+}
@@ -72,12 +72,22 @@ public class AtlasFeatureLayer
         return SessionHolder.instance( SessionHolder.class ).atlasQuery;
     }
 
+    /**
+     * The version of the {@link #sessionQuery()} and the layers of the current
+     * session.
+     */
+    public static AtlasSessionState sessionState() {
+        return SessionHolder.instance( SessionHolder.class ).state;
+    }
+
     protected static class SessionHolder
             extends SessionSingleton {
         
         ConcurrentMap<String,AtlasFeatureLayer> instances = new ConcurrentHashMap( 32 );
         
         AtlasQuery                  atlasQuery = new AtlasQuery();
+        
+        AtlasSessionState           state = new AtlasSessionState();
     }
 
     
@@ -78,6 +78,7 @@ public class AtlasPlugin
         // start indexer
         AtlasIndex atlasIndex = AtlasIndex.instance();
         log.info( "Index size: " + byteCountToDisplaySize( atlasIndex.sizeInByte() ) );
+        atlasIndex.warmUp();
         
         // register HTTP resource
         httpServiceTracker = new ServiceTracker( context, HttpService.class.getName(), null ) {
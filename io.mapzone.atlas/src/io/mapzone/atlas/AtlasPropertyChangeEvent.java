@@ -15,6 +15,7 @@
 package io.mapzone.atlas;
 
 import java.util.EventObject;
+import java.util.Objects;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,6 +30,9 @@ import org.polymap.core.runtime.event.EventHandler;
 import org.polymap.core.runtime.event.EventManager;
 
 /**
+ * Signals a change of a property of {@link AtlasQuery} or
+ * {@link AtlasFeatureLayer}. Handlers should pull the current state via
+ * {@link AtlasSessionState.Cursor} rather than processing the events.
  *
  * @author Falko Bräutigam
  */
@@ -43,6 +47,9 @@ public class AtlasPropertyChangeEvent
     @Mandatory @Immutable
     public Config<Object>           newValue;
 
+    /** The {@link AtlasSessionState#version()} after this change. */
+    private long                    version;
+
 
     public AtlasPropertyChangeEvent( Object source ) {
         super( source );
@@ -58,8 +65,24 @@ public class AtlasPropertyChangeEvent
         return super.getSource();
     }
 
+    /**
+     * The {@link AtlasSessionState#version()} after this change.
+     */
+    public long version() {
+        return version;
+    }
+
     /**
      * Fires a {@link AtlasPropertyChangeEvent} when config property is modified.
+     * Increments the {@link AtlasSessionState#version()}.
+     * <p/>
+     * Setting the current value again (see {@link #isChange(AtlasSessionState,
+     * Config, Object)}) is not a change: no event is fired, the version is not
+     * incremented, and the {@link AtlasQuery} keeps its built filters and does not
+     * cancel its pending work, which was started for this very state. Typing the
+     * same query or a map extent that did not move therefore does not refresh the
+     * views. Changes of the index are not signaled by the properties; the built
+     * filters are keyed by the index generation.
      */
     public static class Fire
             extends DefaultPropertyConcern {
@@ -72,15 +95,38 @@ public class AtlasPropertyChangeEvent
          */
         @Override
         public Object doSet( Object obj, Config prop, Object newValue ) {
+            AtlasSessionState state = AtlasFeatureLayer.sessionState();
+            if (!isChange( state, prop, newValue )) {
+                return newValue;
+            }
+            // synchronously, as pipeline requests may come before the event is delivered
+            if (prop.info().getHostObject() instanceof AtlasQuery) {
+                ((AtlasQuery)prop.info().getHostObject()).clearBuilt();
+                ((AtlasQuery)prop.info().getHostObject()).cancelPending();
+            }
             AtlasPropertyChangeEvent ev = new AtlasPropertyChangeEvent( prop.info().getHostObject() );
             ev.prop.set( prop );
             ev.newValue.set( newValue );
-            log.debug( "Publishing: " + prop.info().getName() + " => " + newValue );
+            ev.version = state.changed();
+            log.debug( "Publishing: " + prop.info().getName() + " => " + newValue + " (" + state + ")" );
             EventManager.instance().publish( ev );
             log.debug( "Published: " + prop.info().getName() + " => " + newValue );
             
             return newValue;
         }
+
+
+        /**
+         * True if the given value differs from the current value of the given
+         * property. Otherwise the unchanged set is counted by the given state.
+         */
+        static boolean isChange( AtlasSessionState state, Config prop, Object newValue ) {
+            if (prop.isPresent() && Objects.equals( prop.get(), newValue )) {
+                state.unchanged();
+                return false;
+            }
+            return true;
+        }
     }
     
 }
\ No newline at end of file
@@ -16,8 +16,18 @@ package io.mapzone.atlas;
 
 import static org.polymap.core.data.DataPlugin.ff;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
+import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.filter.Filter;
@@ -26,6 +36,10 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
+
 import org.polymap.core.project.ILayer;
 import org.polymap.core.runtime.config.Concern;
 import org.polymap.core.runtime.config.Config;
@@ -34,6 +48,7 @@ import org.polymap.core.runtime.config.Configurable;
 import org.polymap.p4.layer.FeatureLayer;
 
 import io.mapzone.atlas.index.AtlasIndex;
+import io.mapzone.atlas.sheet.MarkdownScriptSheet.LayerSheet;
 
 /**
  * The current query of an Atlas instance, consisting of a spatial query
@@ -57,14 +72,87 @@ public class AtlasQuery
     @Concern( AtlasPropertyChangeEvent.Fire.class )
     public Config<ReferencedEnvelope>   mapExtent;
 
+    /**
+     * The {@link #build(ILayer, CoordinateReferenceSystem) built} filters. Key:
+     * queryText, mapExtent, layer, crs and index generation. Cleared by
+     * {@link AtlasPropertyChangeEvent.Fire} and when the index generation changes.
+     */
+    private ConcurrentMap<List<Object>,Filter> built = new ConcurrentHashMap();
+    
+    /** The index generation of the {@link #built} filters. */
+    private volatile long               builtGeneration = -1;
+    
+    /** Cancelled and replaced by {@link #cancelPending()}. */
+    private volatile Token              token = new Token();
+    
+
+    /**
+     * The work started on behalf of the current state of this query. The token
+     * is cancelled when {@link #queryText} or {@link #mapExtent} change.
+     */
+    public Token token() {
+        return token;
+    }
+
 
     /**
-     * Builds the {@link Filter} for the {@link AtlasQueryFilterProcessor}. 
+     * Cancels the {@link #token()} and all jobs registered with it, and starts a
+     * new token. Called by {@link AtlasPropertyChangeEvent.Fire}.
+     */
+    protected void cancelPending() {
+        Token cancelled = token;
+        token = new Token();
+        cancelled.cancel();
+    }
+
+
+    /**
+     * Builds the {@link Filter} for the {@link AtlasQueryFilterProcessor}.
+     * <p/>
+     * The pipeline calls this for every size, bounds and features request. The
+     * result is kept until {@link #queryText} or {@link #mapExtent} change, so that
+     * the requests of one refresh share one filter. A filter of an incomplete
+     * fuzzy search is not kept (see {@link AtlasIndex#isCacheable(Filter)}).
      */
     public Filter build( ILayer layer, CoordinateReferenceSystem crs ) throws Exception {
-        Filter extentFilter = extentFilterOf( crs );
-        Filter textFilter = fulltextFilterOf( layer );
-        return ff.and( extentFilter, textFilter );
+        long generation = AtlasIndex.instance().generation();
+        if (generation != builtGeneration) {
+            // filters of older generations are never requested again
+            built.clear();
+            builtGeneration = generation;
+        }
+        List<Object> key = Arrays.asList( state(), layer.id(), crs, generation );
+        Filter result = built.get( key );
+        if (result == null) {
+            Filter extentFilter = extentFilterOf( crs );
+            Filter textFilter = fulltextFilterOf( layer, mapExtent.isPresent() ? mapExtent.get() : null );
+            result = ff.and( extentFilter, textFilter );
+            if (AtlasIndex.isCacheable( textFilter )) {
+                built.put( key, result );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * The current {@link #queryText} and {@link #mapExtent} (elements may be
+     * null). Two states are equal if both properties are equal.
+     *
+     * @see AtlasSessionState.Cursor#advance(Object)
+     */
+    public List<Object> state() {
+        return Arrays.asList( 
+                queryText.isPresent() ? queryText.get() : null, 
+                mapExtent.isPresent() ? mapExtent.get() : null );
+    }
+
+
+    /**
+     * Discards the {@link #build(ILayer, CoordinateReferenceSystem) built} filters.
+     */
+    protected void clearBuilt() {
+        built.clear();
     }
 
 
@@ -93,15 +181,110 @@ public class AtlasQuery
      *
      */
     protected Filter fulltextFilterOf( ILayer layer ) throws Exception {
+        return fulltextFilterOf( layer, null );
+    }
+
+
+    /**
+     * 
+     * @param extent Restricts the ids of the result to (approximately) this
+     *        extent, or null.
+     */
+    protected Filter fulltextFilterOf( ILayer layer, ReferencedEnvelope extent ) throws Exception {
         Filter textFilter = Filter.INCLUDE;
         if (queryText.isPresent() /*&& mapExtent.isPresent()*/) {
             AtlasIndex index = AtlasIndex.instance();
-            textFilter = index.query( queryText.get(), layer );
+            textFilter = index.query( queryText.get(), layer, extent );
         }
         return textFilter;
     }
 
+
+    /**
+     * The ids of the features of the given layer that best match the
+     * {@link #queryText}, best first. Restricted to (approximately) the
+     * {@link #mapExtent}.
+     *
+     * @param k The max number of ids.
+     * @return The ids, or {@link Optional#empty()} if there is no query text.
+     */
+    public Optional<List<String>> rankedIds( ILayer layer, int k ) throws Exception {
+        if (!queryText.isPresent()) {
+            return Optional.empty();
+        }
+        return AtlasIndex.instance().top( queryText.get(), layer, mapExtent.isPresent() ? mapExtent.get() : null, k );
+    }
+
+
+    /**
+     * Looks up the texts of the sheets of the given features of the given layer
+     * that were rendered at index time, so that
+     * {@link #renderedSheet(ILayer, Feature, LayerSheet)} finds them. This
+     * accesses the index; call it from the job that loads the features.
+     */
+    public void loadRenderedSheets( ILayer layer, Collection<Feature> features ) throws Exception {
+        AtlasIndex.instance().loadRenderedSheets( layer, 
+                features.stream().map( f -> f.getIdentifier().getID() ).collect( Collectors.toList() ) );
+    }
+
+
+    /**
+     * The text of the given sheet of the given feature, if it was rendered at
+     * index time and {@link #loadRenderedSheets(ILayer, Collection) loaded}.
+     * Does not run scripts or access the index, so this can be called from the UI
+     * thread.
+     */
+    public Optional<String> renderedSheet( ILayer layer, Feature feature, LayerSheet sheet ) {
+        return AtlasIndex.instance().renderedSheet( layer, feature.getIdentifier().getID(), sheet );
+    }
+
    
+    /**
+     * Signals that the state of the {@link AtlasQuery}, work was started for, has
+     * changed. Jobs should check {@link #isCancelled()} (or the monitor, if they
+     * are {@link #register(Job) registered}) and discard their results.
+     */
+    public static class Token {
+
+        private volatile boolean    cancelled;
+
+        private Set<Job>            jobs = ConcurrentHashMap.newKeySet();
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Registers the given job, so that it gets {@link Job#cancel() cancelled}
+         * with this token. A waiting job is removed from the queue, a running job
+         * sees its monitor cancelled. Cancels the job immediately if this token is
+         * already cancelled.
+         *
+         * @return The given job.
+         */
+        public <J extends Job> J register( J job ) {
+            jobs.add( job );
+            job.addJobChangeListener( new JobChangeAdapter() {
+                @Override public void done( IJobChangeEvent ev ) {
+                    jobs.remove( job );
+                }
+            });
+            if (cancelled) {
+                job.cancel();
+            }
+            return job;
+        }
+
+        protected void cancel() {
+            cancelled = true;
+            for (Job job : jobs) {
+                job.cancel();
+            }
+            jobs.clear();
+        }
+    }
+
+    
     /**
      * The simple *isLike* over all String attributes. For testing. 
      */
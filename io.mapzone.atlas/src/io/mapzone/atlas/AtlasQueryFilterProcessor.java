@@ -14,17 +14,24 @@
  */
 package io.mapzone.atlas;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.geotools.data.DataAccess;
 import org.geotools.data.Query;
 import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
+import org.opengis.filter.identity.Identifier;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.polymap.core.data.DataPlugin;
+import org.polymap.core.data.feature.AddFeaturesRequest;
 import org.polymap.core.data.feature.DefaultFeaturesProcessor;
 import org.polymap.core.data.feature.FeaturesProducer;
 import org.polymap.core.data.feature.GetBoundsRequest;
@@ -34,7 +41,9 @@ import org.polymap.core.data.feature.GetFeaturesRequest;
 import org.polymap.core.data.feature.GetFeaturesResponse;
 import org.polymap.core.data.feature.GetFeaturesSizeRequest;
 import org.polymap.core.data.feature.GetFeaturesSizeResponse;
+import org.polymap.core.data.feature.ModifyFeaturesRequest;
 import org.polymap.core.data.feature.ModifyFeaturesResponse;
+import org.polymap.core.data.feature.RemoveFeaturesRequest;
 import org.polymap.core.data.feature.TransactionResponse;
 import org.polymap.core.data.pipeline.Consumes;
 import org.polymap.core.data.pipeline.DataSourceDescriptor;
@@ -52,8 +61,15 @@ import org.polymap.core.project.ILayer;
 
 import org.polymap.p4.project.ProjectRepository;
 
+import io.mapzone.atlas.index.AtlasIndex;
+
 /**
  * Add {@link AtlasFeatureLayer#fulltextFilter()} to the layer filter.
+ * <p/>
+ * Also reports modifications of features to the {@link AtlasIndex} so that the
+ * index is incrementally updated. Modifications are reported only after the
+ * request was executed successfully, and again after the transaction was
+ * committed.
  *
  * @author Falko Bräutigam
  */
@@ -63,6 +79,9 @@ public class AtlasQueryFilterProcessor
     private static final Log log = LogFactory.getLog( AtlasQueryFilterProcessor.class );
 
     public static final Param<ILayer>       PARAM_LAYER = new Param( "layer", ILayer.class );
+
+    /** The max number of uncommitted fids to remember; the entire layer is re-indexed on commit otherwise. */
+    public static final int                 MAX_UNCOMMITTED = 10000;
     
     
     /**
@@ -114,6 +133,12 @@ public class AtlasQueryFilterProcessor
 
     private CoordinateReferenceSystem   layerCrs;
 
+    /** Fids reported since the last {@link TransactionResponse}. */
+    private Set<String>                 uncommitted = new HashSet();
+
+    /** True if the {@link #uncommitted} fids are incomplete. */
+    private boolean                     uncommittedOverflow;
+
 
     @Override
     public void init( PipelineProcessorSite site ) throws Exception {
@@ -152,12 +177,87 @@ public class AtlasQueryFilterProcessor
     }
 
 
+    @Override
+    public void modifyFeaturesRequest( ModifyFeaturesRequest request, ProcessorContext context ) throws Exception {
+        // throws if the request failed
+        context.sendRequest( request );
+        featuresChanged( request.getFilter() );
+    }
+
+
+    @Override
+    public void removeFeaturesRequest( RemoveFeaturesRequest request, ProcessorContext context ) throws Exception {
+        context.sendRequest( request );
+        featuresChanged( request.getFilter() );
+    }
+
+
+    @Override
+    public void addFeaturesRequest( AddFeaturesRequest request, ProcessorContext context ) throws Exception {
+        // ids of the new features are reported by the ModifyFeaturesResponse
+        context.sendRequest( request );
+    }
+
+
+    /**
+     * Reports the given, executed modification to the {@link AtlasIndex}. The
+     * fids are reported again after the next {@link TransactionResponse}, as the
+     * index may have read the data before it was committed.
+     */
+    protected void featuresChanged( Filter filter ) {
+        synchronized (uncommitted) {
+            if (filter instanceof Id && !uncommittedOverflow) {
+                for (Identifier id : ((Id)filter).getIdentifiers()) {
+                    uncommitted.add( id.getID().toString() );
+                }
+            }
+            if (!(filter instanceof Id) || uncommitted.size() > MAX_UNCOMMITTED) {
+                uncommittedOverflow = true;
+                uncommitted.clear();
+            }
+        }
+        AtlasIndex.instance().featuresChanged( layer.id(), filter );
+    }
+
+
+    /**
+     * Reports all fids modified since the last {@link TransactionResponse}.
+     */
+    protected void committed() {
+        Filter filter = null;
+        synchronized (uncommitted) {
+            if (uncommittedOverflow) {
+                filter = Filter.INCLUDE;
+            }
+            else if (!uncommitted.isEmpty()) {
+                filter = DataPlugin.ff.id( uncommitted.stream()
+                        .map( fid -> DataPlugin.ff.featureId( fid ) ).collect( Collectors.toSet() ) );
+            }
+            uncommitted.clear();
+            uncommittedOverflow = false;
+        }
+        if (filter != null) {
+            AtlasIndex.instance().featuresChanged( layer.id(), filter );
+        }
+    }
+
+
     @Produces( {TransactionResponse.class, ModifyFeaturesResponse.class, GetBoundsResponse.class, GetFeaturesSizeResponse.class, GetFeatureTypeResponse.class, GetFeaturesResponse.class, EndOfProcessing.class} )
     @Consumes( {TransactionResponse.class, ModifyFeaturesResponse.class, GetBoundsResponse.class, GetFeaturesSizeResponse.class, GetFeatureTypeResponse.class, GetFeaturesResponse.class, EndOfProcessing.class} )
     public void handleResponse( ProcessorResponse response, ProcessorContext context ) throws Exception {
         if (response instanceof GetFeatureTypeResponse) {
             layerCrs = ((GetFeatureTypeResponse)response).getFeatureType().getCoordinateReferenceSystem();
         }
+        // sent after the request has been executed successfully
+        else if (response instanceof ModifyFeaturesResponse) {
+            Set<FeatureId> fids = ((ModifyFeaturesResponse)response).getFids();
+            if (fids != null && !fids.isEmpty()) {
+                featuresChanged( DataPlugin.ff.id( fids ) );
+            }
+        }
+        else if (response instanceof TransactionResponse) {
+            committed();
+        }
         context.sendResponse( response );
     }
     
@@ -0,0 +1,173 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The version of the state of the {@link AtlasQuery} and the
+ * {@link AtlasFeatureLayer}s of a session. Every change of one of their
+ * properties increments the {@link #version()}.
+ * <p/>
+ * Event handlers should not process the list of {@link AtlasPropertyChangeEvent}s
+ * they get, but pull the current state once per call, using a {@link Cursor}. The
+ * events just signal that there is something to pull. The number of published
+ * events and of refreshes actually performed per consumer are counted, see
+ * {@link #toString()}.
+ *
+ * @see AtlasFeatureLayer#sessionState()
+ * @author Falko Bräutigam
+ */
+public class AtlasSessionState {
+
+    /** The state of a {@link Cursor} that has not seen any state yet. */
+    private static final Object             NONE = new Object();
+
+    private AtomicLong                      version = new AtomicLong();
+
+    private AtomicLong                      events = new AtomicLong();
+
+    private AtomicLong                      unchanged = new AtomicLong();
+
+    /** Consumer name -> number of refreshes. */
+    private ConcurrentMap<String,AtomicLong> refreshes = new ConcurrentHashMap();
+
+
+    /**
+     * Monotonically increasing; incremented by every change of a property.
+     */
+    public long version() {
+        return version.get();
+    }
+
+
+    /**
+     * Called by {@link AtlasPropertyChangeEvent.Fire} before an event is published.
+     *
+     * @return The new version.
+     */
+    long changed() {
+        events.incrementAndGet();
+        return version.incrementAndGet();
+    }
+
+
+    /**
+     * Called by {@link AtlasPropertyChangeEvent.Fire} if a property was set to
+     * its current value; no event is published then.
+     */
+    void unchanged() {
+        unchanged.incrementAndGet();
+    }
+
+
+    /**
+     * Creates a new {@link Cursor} for the given consumer.
+     *
+     * @param consumer The name of the consumer, used for the statistics.
+     */
+    public Cursor cursor( String consumer ) {
+        return new Cursor( consumer );
+    }
+
+
+    /**
+     * Creates a new {@link Cursor} for the given consumer that starts at the
+     * current {@link #version()} and the given state.
+     */
+    public Cursor cursor( String consumer, Object state ) {
+        Cursor result = new Cursor( consumer );
+        result.seenVersion = version.get();
+        result.seenState = state;
+        return result;
+    }
+
+
+    @Override
+    public String toString() {
+        Map<String,AtomicLong> sorted = new TreeMap( refreshes );
+        return "AtlasSessionState[version=" + version.get() + ", events=" + events.get()
+                + ", unchanged=" + unchanged.get() + ", refreshes=" + sorted + "]";
+    }
+
+
+    /**
+     * The position of one consumer in the versions of the state. Not thread-safe;
+     * a consumer is expected to pull from one thread, usually the display thread.
+     */
+    public class Cursor {
+
+        private String          consumer;
+
+        private long            seenVersion = -1;
+
+        private Object          seenState = NONE;
+
+        private AtomicLong      count;
+
+
+        protected Cursor( String consumer ) {
+            this.consumer = consumer;
+            this.count = refreshes.computeIfAbsent( consumer, key -> new AtomicLong() );
+        }
+
+
+        /**
+         * Checks if the consumer has to refresh. This is the case if the
+         * {@link #version()} has changed since the last call and the given state,
+         * the part of the state the consumer depends on, differs from the state of
+         * the last refresh.
+         * <p/>
+         * Returns true at most once per version; a true result is counted as
+         * refresh.
+         *
+         * @param state The current state the consumer depends on; compared by
+         *        {@link Objects#equals(Object, Object)}.
+         */
+        public boolean advance( Object state ) {
+            long current = version.get();
+            if (current == seenVersion) {
+                return false;
+            }
+            seenVersion = current;
+            if (Objects.equals( state, seenState )) {
+                return false;
+            }
+            seenState = state;
+            count.incrementAndGet();
+            return true;
+        }
+
+
+        /**
+         * Checks if the given state equals the state of the last refresh.
+         */
+        public boolean isSeen( Object state ) {
+            return Objects.equals( state, seenState );
+        }
+
+
+        @Override
+        public String toString() {
+            return "Cursor[" + consumer + ", version=" + seenVersion + "]";
+        }
+    }
+
+}
@@ -0,0 +1,297 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import java.text.DateFormat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.json.JSONObject;
+import org.opengis.feature.Feature;
+import org.opengis.feature.Property;
+import org.opengis.geometry.BoundingBox;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+
+/**
+ * Transforms a {@link Feature} into the index document in one pass. This replaces
+ * the chain of {@link AtlasFeatureTransformer} and
+ * {@link org.polymap.rhei.fulltext.indexing.ToStringTransformer}, which builds a
+ * JSON tree of the feature first and then another one with all values converted
+ * to String.
+ * <p/>
+ * Attribute values are converted to String while written into the document.
+ * {@link Geometry} values are skipped. The bounds of the feature are stored in
+ * {@link #FIELD_BOUNDS}, so that query results can be restricted to the map extent
+ * (see {@link FeatureIdSet#intersecting(Envelope)}). Just the attributes
+ * referenced by the layer sheets are indexed, if given (see
+ * {@link LayerIndexer#indexedAttributes}). Formatters and buffers are
+ * per thread, so one instance can be used by all workers of the
+ * {@link IndexPipeline}.
+ *
+ * @author Falko Bräutigam
+ */
+class AtlasDocumentTransformer
+        implements Function<Feature,JSONObject> {
+
+    private static final Log log = LogFactory.getLog( AtlasDocumentTransformer.class );
+
+    public static final String      FIELD_FEATURETYPE = "_featureType_";
+
+    /**
+     * The id of the layer the document belongs to, encoded as one token by
+     * {@link #token(String)}. Layers may share the same feature type or even
+     * the same data, so results are partitioned by layer and the
+     * {@link FulltextIndex#FIELD_ID id} of a document is scoped by layer (see
+     * {@link #documentId(String, String)}).
+     */
+    public static final String      FIELD_LAYER = "_layer_";
+
+    /**
+     * The {@link FulltextIndex#FIELD_ID id} of the document, encoded as one token
+     * by {@link #token(String)}, so that documents can be searched by id.
+     */
+    public static final String      FIELD_KEY = "_key_";
+
+    /**
+     * The bounds of the feature in {@link DefaultGeographicCRS#WGS84}, encoded as
+     * one token by {@link #encodeBounds(Envelope)}.
+     */
+    public static final String      FIELD_BOUNDS = "_bounds_";
+
+    public static final CoordinateReferenceSystem BOUNDS_CRS = DefaultGeographicCRS.WGS84;
+
+    private static final ThreadLocal<DateFormat> dateFormat = ThreadLocal.withInitial( () ->
+            DateFormat.getDateInstance( DateFormat.MEDIUM, Locale.GERMAN ) );
+
+    /** Source CRS -> transform to {@link #BOUNDS_CRS}. */
+    private static final Map<CoordinateReferenceSystem,MathTransform> transforms = new ConcurrentHashMap();
+
+    private static final ThreadLocal<StringBuilder> buffer = ThreadLocal.withInitial( () ->
+            new StringBuilder( 256 ) );
+
+
+    @Override
+    public JSONObject apply( Feature feature ) {
+        return apply( feature, null );
+    }
+
+
+    /**
+     * Transforms the given feature, indexing just the given attributes.
+     *
+     * @param attributes The names of the attributes to index, or null for all.
+     */
+    public JSONObject apply( Feature feature, Set<String> attributes ) {
+        JSONObject result = new JSONObject();
+        result.put( FulltextIndex.FIELD_ID, feature.getIdentifier().getID() );
+        result.put( FIELD_FEATURETYPE, feature.getType().getName().getLocalPart() );
+        Envelope bounds = boundsOf( feature );
+        if (bounds != null) {
+            result.put( FIELD_BOUNDS, encodeBounds( bounds ) );
+        }
+
+        for (Property prop : feature.getProperties()) {
+            String name = prop.getName().getLocalPart();
+            Object value = prop.getValue();
+            if (value != null && !(value instanceof Geometry)
+                    && (attributes == null || attributes.contains( name ))) {
+                String s = valueToString( value );
+                if (!s.isEmpty()) {
+                    result.put( name, s );
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Sets the {@link #FIELD_LAYER} and {@link #FIELD_KEY} of the given document
+     * and scopes its {@link FulltextIndex#FIELD_ID id} by the layer.
+     *
+     * @return The given document.
+     */
+    public static JSONObject scope( JSONObject doc, String layerId ) {
+        String id = documentId( layerId, doc.getString( FulltextIndex.FIELD_ID ) );
+        doc.put( FulltextIndex.FIELD_ID, id );
+        doc.put( FIELD_KEY, token( id ) );
+        doc.put( FIELD_LAYER, token( layerId ) );
+        return doc;
+    }
+
+
+    /**
+     * Encodes the given String as one lower case token, so that a document can be
+     * searched by it, and the String does not end up as terms in the fulltext
+     * index.
+     */
+    public static String token( String s ) {
+        StringBuilder result = new StringBuilder( 1 + (s.length() * 2) ).append( '_' );
+        for (byte b : s.getBytes( StandardCharsets.UTF_8 )) {
+            result.append( Character.forDigit( (b >> 4) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return result.toString();
+    }
+
+
+    /**
+     * Decodes the {@link #FIELD_LAYER} of the given document.
+     *
+     * @return The layer id, or null if the document has no (valid) layer field.
+     */
+    public static String layerIdOf( JSONObject doc ) {
+        String token = doc.optString( FIELD_LAYER, null );
+        if (token == null || token.length() % 2 != 1) {
+            return null;
+        }
+        byte[] bytes = new byte[token.length() / 2];
+        for (int i=0; i<bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt( token.substring( 1 + (i * 2), 3 + (i * 2) ), 16 );
+        }
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     * The {@link FulltextIndex#FIELD_ID id} of the document of the given feature
+     * in the given layer.
+     */
+    public static String documentId( String layerId, String fid ) {
+        return layerId + "/" + fid;
+    }
+
+
+    /**
+     * The feature id of the given document id of the given layer.
+     *
+     * @see #documentId(String, String)
+     */
+    public static String fidOf( String layerId, String documentId ) {
+        return documentId.substring( layerId.length() + 1 );
+    }
+
+
+    /**
+     * The bounds of the given feature in {@link #BOUNDS_CRS}.
+     *
+     * @return The bounds, or null if the feature has no geometry or CRS.
+     */
+    protected Envelope boundsOf( Feature feature ) {
+        BoundingBox bounds = feature.getBounds();
+        CoordinateReferenceSystem crs = bounds != null ? bounds.getCoordinateReferenceSystem() : null;
+        if (bounds == null || bounds.isEmpty() || crs == null) {
+            return null;
+        }
+        try {
+            MathTransform transform = transforms.computeIfAbsent( crs, key -> {
+                try {
+                    return CRS.findMathTransform( key, BOUNDS_CRS, true );
+                }
+                catch (Exception e) {
+                    throw new RuntimeException( e );
+                }
+            });
+            Envelope envelope = new Envelope( bounds.getMinX(), bounds.getMaxX(), bounds.getMinY(), bounds.getMaxY() );
+            return transform.isIdentity() ? envelope : JTS.transform( envelope, null, transform, 5 );
+        }
+        catch (Exception e) {
+            log.debug( "Bounds: " + e.getLocalizedMessage() );
+            return null;
+        }
+    }
+
+
+    /**
+     * Encodes the given bounds as one token, so that the coordinates do not end up
+     * as terms in the fulltext index. Precision is float, rounded outwards.
+     */
+    public static String encodeBounds( Envelope bounds ) {
+        StringBuilder buf = new StringBuilder( 33 ).append( '_' );
+        for (float f : new float[] {
+                Math.nextDown( (float)bounds.getMinX() ), Math.nextDown( (float)bounds.getMinY() ),
+                Math.nextUp( (float)bounds.getMaxX() ), Math.nextUp( (float)bounds.getMaxY() )}) {
+            String hex = Integer.toHexString( Float.floatToIntBits( f ) );
+            for (int i=hex.length(); i<8; i++) {
+                buf.append( '0' );
+            }
+            buf.append( hex );
+        }
+        return buf.toString();
+    }
+
+
+    /**
+     * Decodes bounds encoded by {@link #encodeBounds(Envelope)} into minX, minY,
+     * maxX, maxY of the given array.
+     *
+     * @return False if the given String is not properly encoded.
+     */
+    public static boolean decodeBounds( String encoded, float[] result, int offset ) {
+        if (encoded == null || encoded.length() != 33) {
+            return false;
+        }
+        for (int i=0; i<4; i++) {
+            int begin = 1 + (i * 8);
+            result[offset + i] = Float.intBitsToFloat( Integer.parseUnsignedInt( encoded.substring( begin, begin + 8 ), 16 ) );
+        }
+        return true;
+    }
+
+
+    protected String valueToString( Object value ) {
+        if (value instanceof String) {
+            return (String)value;
+        }
+        else if (value instanceof Date) {
+            return dateFormat.get().format( (Date)value );
+        }
+        else if (value instanceof Collection) {
+            StringBuilder buf = buffer.get();
+            buf.setLength( 0 );
+            for (Object elm : (Collection)value) {
+                if (elm != null && !(elm instanceof Geometry)) {
+                    // no recursion for nested collections as they would reset the buffer
+                    buf.append( buf.length() > 0 ? " " : "" )
+                            .append( elm instanceof Collection ? elm.toString() : valueToString( elm ) );
+                }
+            }
+            return buf.toString();
+        }
+        else {
+            return value.toString();
+        }
+    }
+
+}
@@ -32,7 +32,7 @@ class AtlasFeatureTransformer
     @Override
     protected void init( JSONObject result, Feature feature ) {
         super.init( result, feature );
-        result.putOnce( "_featureType_", feature.getType().getName().getLocalPart() );
+        result.putOnce( AtlasDocumentTransformer.FIELD_FEATURETYPE, feature.getType().getName().getLocalPart() );
     }
 
     @Override
@@ -14,34 +14,64 @@
  */
 package io.mapzone.atlas.index;
 
+import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
 import static org.polymap.core.data.DataPlugin.ff;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.time.Instant;
 
 import org.geotools.data.FeatureSource;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.json.JSONObject;
 import org.opengis.feature.Feature;
 import org.opengis.filter.Filter;
-import org.opengis.filter.identity.FeatureId;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.Identifier;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.FluentIterable;
-import com.google.common.collect.Lists;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.vividsolutions.jts.geom.Envelope;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
 import org.eclipse.core.runtime.jobs.Job;
 
 import org.polymap.core.CorePlugin;
@@ -50,9 +80,8 @@ import org.polymap.core.project.ILayer;
 import org.polymap.core.project.IMap;
 import org.polymap.core.runtime.Lazy;
 import org.polymap.core.runtime.LockedLazyInit;
-import org.polymap.core.runtime.UIJob;
-import org.polymap.core.runtime.cache.Cache;
-import org.polymap.core.runtime.cache.CacheConfig;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
 import org.polymap.core.runtime.session.DefaultSessionContext;
 import org.polymap.core.runtime.session.DefaultSessionContextProvider;
 import org.polymap.core.runtime.session.SessionContext;
@@ -67,17 +96,24 @@ import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex;
 import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
 
 import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.test.Timer;
+import org.polymap.p4.layer.FeatureLayer;
 import org.polymap.p4.project.ProjectRepository;
 
 import io.mapzone.atlas.AtlasPlugin;
+import io.mapzone.atlas.sheet.MarkdownScriptSheet.LayerSheet;
+import io.mapzone.atlas.sheet.SheetUpdateEvent;
 
 /**
  * Provides a {@link FulltextIndex} of the content of the features of all Atlas
  * {@link ILayer}s.
  * <p/>
- * The index is {@link #RECREATE_TIMEOUT periodically} re-created by the
- * {@link IndexerJob} which runs inside its own {@link #SESSION_PROVIDER session
- * context}.
+ * Modifications of features are {@link #featuresChanged(String, Filter) reported} by
+ * the {@link io.mapzone.atlas.AtlasQueryFilterProcessor} and incrementally
+ * applied to the index by the {@link UpdaterJob}. Additionally the index is
+ * {@link #RECREATE_TIMEOUT periodically} re-created by the {@link IndexerJob} as a
+ * consistency sweep. Both jobs run inside their own {@link #SESSION_PROVIDER
+ * session context}.
  *
  * @author Falko Bräutigam
  */
@@ -85,7 +121,83 @@ public class AtlasIndex {
 
     private static final Log log = LogFactory.getLog( AtlasIndex.class );
     
-    private static final Duration RECREATE_TIMEOUT = Duration.ofMinutes( 60 );
+    /** The interval of the full consistency sweep of the {@link IndexerJob}. */
+    private static final Duration RECREATE_TIMEOUT = Duration.ofHours( 24 );
+    
+    /**
+     * The interval of a full sweep (default: 7 days) that re-indexes all layers
+     * regardless of their {@link LayerIndexer#fingerprint(FeatureSource)
+     * fingerprint}, which does not reflect all changes of the data.
+     */
+    private static final Duration SWEEP_INTERVAL = Duration.ofDays( 
+            Long.getLong( "io.mapzone.atlas.index.sweepDays", 7 ) );
+    
+    /**
+     * The min time after startup before the {@link IndexerJob} checks the layers
+     * of an existing, consistent index.
+     */
+    private static final Duration STARTUP_DELAY = Duration.ofMinutes( 
+            Long.getLong( "io.mapzone.atlas.index.startupDelayMinutes", 10 ) );
+    
+    /** Collect modifications for this time before the {@link UpdaterJob} runs. */
+    private static final Duration UPDATE_DELAY = Duration.ofSeconds( 5 );
+    
+    /** 
+     * The number of threads transforming/storing documents. Leave one core for the
+     * UI threads.
+     */
+    private static final int        WORKERS = Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 );
+    
+    /** The number of layers read concurrently by the {@link IndexerJob} (default: 2). */
+    private static final int        READERS = Integer.getInteger( "io.mapzone.atlas.index.readers", 2 );
+    
+    /**
+     * Use the one-pass {@link AtlasDocumentTransformer} (default) or the
+     * {@link AtlasFeatureTransformer} -> {@link ToStringTransformer} chain.
+     */
+    private static final boolean    STREAMING_TRANSFORMER = Boolean.parseBoolean( 
+            System.getProperty( "io.mapzone.atlas.index.streamingTransformer", "true" ) );
+    
+    /**
+     * The max time to look for similar terms if a query has no result (default:
+     * 50ms). 0 disables fuzzy matching.
+     */
+    private static final Duration   FUZZY_MAX_TIME = Duration.ofMillis( Long.getLong( "io.mapzone.atlas.fuzzy.maxMillis", 50 ) );
+    
+    /** The max number of similar terms a misspelled term is replaced with. */
+    private static final int        FUZZY_MAX_TERMS = 3;
+    
+    /** Prefix of the cache keys of fuzzy results; a (trimmed) canonical query never starts with it. */
+    private static final String     FUZZY_KEY_PREFIX = "\0";
+    
+    /**
+     * Read the index files once after startup, so that they are in the page cache
+     * of the OS for the first searches (default: true). See {@link IndexWarmer}.
+     */
+    static final boolean            PREWARM = Boolean.parseBoolean( 
+            System.getProperty( "io.mapzone.atlas.index.prewarm", "true" ) );
+    
+    /**
+     * Build a fresh index generation side by side with the serving one and switch
+     * atomically, if the {@link IndexerJob} finds changes that were not reported
+     * via {@link #featuresChanged(String, Filter)} (default: true). Otherwise
+     * changed layers are re-indexed in place.
+     */
+    private static final boolean    SIDE_BY_SIDE = Boolean.parseBoolean( 
+            System.getProperty( "io.mapzone.atlas.index.sideBySide", "true" ) );
+    
+    /** Time to wait before a replaced index generation is closed and deleted. */
+    private static final Duration   RETIRE_DELAY = Duration.ofMinutes( 1 );
+    
+    /**
+     * The format of the documents. Changing this forces all layers to be
+     * re-indexed. 2: {@link AtlasDocumentTransformer#FIELD_BOUNDS}, 3:
+     * {@link GermanTokenFilter}, 4: {@link AtlasDocumentTransformer#FIELD_LAYER}
+     * (5 if {@link GermanTokenFilter#FOLD} is off), 6: encoded sheets (7 if
+     * {@link GermanTokenFilter#FOLD} is off), 8: sheets in the {@link SheetStore}
+     * (9 if {@link GermanTokenFilter#FOLD} is off)
+     */
+    private static final int        DOCUMENT_FORMAT = GermanTokenFilter.FOLD ? 8 : 9;
     
     private static final DefaultSessionContextProvider SESSION_PROVIDER = new DefaultSessionContextProvider();
     
@@ -101,26 +213,83 @@ public class AtlasIndex {
 
     // instance ******************************************
     
-    private LuceneFulltextIndex         index;
+    private File                        dataDir;
+    
+    /** The directory of the serving {@link #index}. */
+    private volatile File               indexDir;
+    
+    /** The serving index; replaced by {@link IndexerJob#rebuild(Map, Map, IProgressMonitor)}. */
+    private volatile LuceneFulltextIndex index;
+    
+    /** The rendered sheets of the serving {@link #index}; replaced together with it. */
+    private volatile SheetStore         sheets;
     
     private List<FeatureTransformer>    transformers = new ArrayList();
     
+    private AtlasDocumentTransformer    documentTransformer = new AtlasDocumentTransformer();
+    
+    private IndexMetadata               metadata;
+    
     private IndexerJob                  indexer = new IndexerJob();
+    
+    /** The worker pool shared by all {@link IndexPipeline}s. */
+    private ExecutorService             workers = Executors.newFixedThreadPool( WORKERS, new ThreadFactoryBuilder()
+            .setNameFormat( "AtlasIndexer-%d" ).setDaemon( true ).setPriority( Thread.MIN_PRIORITY ).build() );
+
+    /** Reads the layers for the {@link IndexerJob}. */
+    private ExecutorService             readers = Executors.newFixedThreadPool( READERS, new ThreadFactoryBuilder()
+            .setNameFormat( "AtlasReader-%d" ).setDaemon( true ).build() );
+
+    private UpdaterJob                  updateJob = new UpdaterJob();
+    
+    /** Prevents {@link IndexerJob} and {@link UpdaterJob} from writing concurrently. */
+    private ISchedulingRule             writeRule = new ISchedulingRule() {
+        @Override public boolean contains( ISchedulingRule rule ) { return rule == this; }
+        @Override public boolean isConflicting( ISchedulingRule rule ) { return rule == this; }
+    };
 
     private DefaultSessionContext       updateContext;
 
     private DefaultSessionContextProvider contextProvider;
     
-    private Cache<String,List<JSONObject>> cache = CacheConfig.defaults().initSize( 128 ).createCache();
+    /** Query -> result. */
+    private QueryCache                  cache = new QueryCache();
+    
+    /** The results of {@link #cache} restricted to layer and extent, shared by all sessions. */
+    private SharedResultCache           shared = new SharedResultCache();
+    
+    /** Generation + document id -> rendered sheets of the features shown in result lists. */
+    private Cache<String,String[]>      renderedSheets = CacheBuilder.newBuilder().maximumSize( 1000 ).build();
+    
+    private QueryCanonicalizer          canonicalizer = new QueryCanonicalizer();
+    
+    /** Proposals of the serving {@link #index}. */
+    private volatile TermSuggester      suggester = TermSuggester.EMPTY;
     
     
     protected AtlasIndex() {
         // Lucene index
         try {
-            File indexDir = new File( CorePlugin.getDataLocation( AtlasPlugin.instance() ), "index" );
-            index = new LuceneFulltextIndex( indexDir );
-            index.setTokenizer( new AtlasTokenizer() );
-            index.addTokenFilter( new LowerCaseTokenFilter() );
+            dataDir = CorePlugin.getDataLocation( AtlasPlugin.instance() );
+            metadata = new IndexMetadata( new File( dataDir, "index.properties" ) );
+            if (metadata.checkDocumentFormat( DOCUMENT_FORMAT )) {
+                metadata.setConsistent( false );
+            }
+            
+            indexDir = indexDirOf( metadata.indexGeneration() );
+            index = openIndex( indexDir );
+            sheets = new SheetStore( openIndex( sheetsDirOf( metadata.indexGeneration() ) ) );
+            deleteStaleGenerations();
+            
+            File suggesterFile = suggesterFileOf( metadata.indexGeneration() );
+            if (suggesterFile.exists()) {
+                try {
+                    suggester = TermSuggester.load( suggesterFile );
+                }
+                catch (Exception e) {
+                    log.warn( "Unable to load suggester: " + suggesterFile, e );
+                }
+            }
             
             transformers.add( new AtlasFeatureTransformer() );
             transformers.add( new ToStringTransformer() );            
@@ -141,7 +310,91 @@ public class AtlasIndex {
         SessionContext.addProvider( contextProvider );
         
         // start indexer
-        indexer.schedule();
+        indexer.schedule( startupDelay().toMillis() );
+        
+        EventManager.instance().subscribe( this, ev -> ev instanceof SheetUpdateEvent );
+    }
+    
+    
+    /**
+     * The delay of the first run of the {@link IndexerJob}. An existing index that
+     * is consistent is served right away; it is checked at its regular time, but
+     * not before {@link #STARTUP_DELAY}. Modifications reported via
+     * {@link #featuresChanged(String, Filter)} are indexed meanwhile.
+     */
+    protected Duration startupDelay() {
+        return startupDelay( metadata, sizeInByte(), Instant.now() );
+    }
+    
+    
+    /**
+     * See {@link #startupDelay()}. Layers that are still
+     * {@link IndexMetadata#isDirty(String) dirty}, because the {@link UpdaterJob}
+     * did not run before a crash or shutdown, are re-indexed after
+     * {@link #UPDATE_DELAY}, as if their modifications were just reported.
+     */
+    static Duration startupDelay( IndexMetadata metadata, long indexSize, Instant now ) {
+        Optional<Instant> buildTime = metadata.buildTime();
+        if (!buildTime.isPresent() || !metadata.isConsistent() || indexSize == 0) {
+            log.info( "No consistent index found. Indexing now." );
+            return Duration.ZERO;
+        }
+        if (metadata.hasDirty()) {
+            log.info( "Serving existing index (generation: " + metadata.indexGeneration() 
+                    + "). Indexing dirty layers in " + UPDATE_DELAY.getSeconds() + "s" );
+            return UPDATE_DELAY;
+        }
+        Duration age = Duration.between( buildTime.get(), now );
+        Duration result = RECREATE_TIMEOUT.minus( age );
+        result = result.compareTo( STARTUP_DELAY ) > 0 ? result : STARTUP_DELAY;
+        log.info( "Serving existing index (generation: " + metadata.indexGeneration() + ", age: " + age.toMinutes() 
+                + "min). Next check in " + result.toMinutes() + "min" );
+        return result;
+    }
+    
+    
+    /**
+     * The sheets of a layer decide which attributes are indexed (see
+     * {@link LayerIndexer#indexedAttributes(ILayer, FeatureSource)}). The
+     * changed fingerprint of the layer triggers the re-index.
+     */
+    @EventHandler( delay=5000 )
+    protected void onSheetUpdate( List<SheetUpdateEvent> evs ) {
+        log.info( "Sheets changed, checking layers..." );
+        indexer.schedule( UPDATE_DELAY.toMillis() );
+    }
+    
+    
+    /**
+     * Reports modifications of features of the given layer. The index is
+     * asynchronously updated after {@link #UPDATE_DELAY}.
+     *
+     * @param layerId The id of the {@link ILayer} the features belong to.
+     * @param filter The filter of the modified features. If this is not an
+     *        {@link Id} filter then the entire layer is re-indexed.
+     */
+    public void featuresChanged( String layerId, Filter filter ) {
+        if (filter instanceof Id) {
+            Set<String> fids = new HashSet();
+            for (Identifier id : ((Id)filter).getIdentifiers()) {
+                fids.add( id.getID().toString() );
+            }
+            updateJob.addPending( layerId, fids );
+        }
+        else {
+            log.info( "Non-Id filter, re-indexing layer: " + layerId );
+            indexer.forced.add( layerId );
+            indexer.schedule( UPDATE_DELAY.toMillis() );
+        }
+        // survive a restart before the modifications are applied
+        if (!metadata.isDirty( layerId )) {
+            try {
+                metadata.setDirty( layerId, true ).store();
+            }
+            catch (IOException e) {
+                log.warn( "Unable to store index metadata.", e );
+            }
+        }
     }
     
     
@@ -150,57 +403,494 @@ public class AtlasIndex {
      */
     public FulltextIndex queryDecoratedIndex() {
         return new FullQueryProposalDecorator( 
-                new LowerCaseTokenFilter( index ) ); 
+                new LowerCaseTokenFilter( 
+                new GermanTokenFilter(
+                new SuggestProposalDecorator( servingIndex(), () -> suggester ) ) ) ); 
                 //new LogQueryDecorator( index ) ) );
     }
 
     
+    /**
+     * Creates an index that delegates every method to the currently serving
+     * {@link AtlasIndex#index}, so that decorators created by
+     * {@link AtlasIndex#queryDecoratedIndex()} survive the switch to a new index
+     * generation.
+     */
+    protected FulltextIndex servingIndex() {
+        return (FulltextIndex)Proxy.newProxyInstance( FulltextIndex.class.getClassLoader(), 
+                new Class[] {FulltextIndex.class}, (proxy, method, args) -> {
+                    try {
+                        return method.invoke( index, args );
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+    
+    
+    protected File indexDirOf( int generation ) {
+        return new File( dataDir, generation == 0 ? "index" : "index-" + generation );
+    }
+    
+    
+    protected File suggesterFileOf( int generation ) {
+        return new File( dataDir, "suggest-" + generation + ".gz" );
+    }
+    
+    
+    protected File sheetsDirOf( int generation ) {
+        return new File( dataDir, "sheets-" + generation );
+    }
+    
+    
+    protected LuceneFulltextIndex openIndex( File dir ) throws IOException {
+        LuceneFulltextIndex result = new LuceneFulltextIndex( dir );
+        result.setTokenizer( new AtlasTokenizer() );
+        result.addTokenFilter( new LowerCaseTokenFilter() );
+        result.addTokenFilter( new GermanTokenFilter() );
+        return result;
+    }
+    
+    
+    /**
+     * Deletes the directories (and suggesters and sheet stores) of index
+     * generations other than the serving one; left over by a crashed rebuild or a
+     * crash before a retired generation was deleted.
+     */
+    protected void deleteStaleGenerations() {
+        File serving = suggesterFileOf( metadata.indexGeneration() );
+        File servingSheets = sheetsDirOf( metadata.indexGeneration() );
+        File[] files = dataDir.listFiles( f -> f.getName().equals( "index" ) || f.getName().startsWith( "index-" ) 
+                || f.getName().startsWith( "suggest-" ) || f.getName().startsWith( "sheets-" ) );
+        for (File f : files != null ? files : new File[0]) {
+            if (!f.equals( indexDir ) && !f.equals( serving ) && !f.equals( servingSheets )) {
+                log.info( "Deleting stale index generation: " + f.getName() );
+                FileUtils.deleteQuietly( f );
+            }
+        }
+    }
+    
+    
+    /**
+     * Forces all files of the given directory, and the directory itself, to disk.
+     */
+    protected static void fsync( File dir ) throws IOException {
+        for (File f : dir.listFiles()) {
+            if (f.isFile()) {
+                try (FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ )) {
+                    channel.force( true );
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open( dir.toPath(), StandardOpenOption.READ )) {
+            channel.force( true );
+        }
+        catch (IOException e) {
+            // not supported on all platforms
+            log.debug( "fsync directory: " + e.getLocalizedMessage() );
+        }
+    }
+
+    
     public long sizeInByte() {
         return index.store().storeSizeInByte();
     }
     
     
+    /**
+     * Asynchronously pre-warms the page cache with the index files, if
+     * {@link #PREWARM} is on.
+     */
+    public void warmUp() {
+        if (PREWARM) {
+            new IndexWarmer( indexDir, index ).schedule();
+        }
+        else {
+            log.info( "Index size: " + byteCountToDisplaySize( sizeInByte() ) + ", prewarming is off" );
+        }
+    }
+    
+    
+    /**
+     * The generation of the content of the index. This is incremented after every
+     * modification of the index.
+     */
+    public long generation() {
+        return cache.generation();
+    }
+    
+    
+    /**
+     * Hit, miss, eviction and load time statistics of the query cache.
+     */
+    public CacheStats cacheStats() {
+        return cache.stats();
+    }
+    
+    
+    /**
+     * Statistics of the per layer and extent results shared by all sessions.
+     */
+    public CacheStats sharedCacheStats() {
+        return shared.stats();
+    }
+    
+    
+    /**
+     * Called after the index was modified. Increments the {@link #generation} and
+     * invalidates the query cache and the shared results.
+     */
+    protected void indexUpdated() {
+        cache.invalidate();
+        shared.invalidate();
+        renderedSheets.invalidateAll();
+        log.info( "Generation: " + cache.generation() + ", cache: " + cache.stats() + ", shared: " + shared.stats() );
+    }
+    
+    
     /**
      * Query this index. 
      *
      * @param query The Lucene query string.
      * @param layer The layer to query.
      * @return The query/filter to apply to the {@link FeatureSource} of the layer.
+     *         The filter contains just the ids of the features of this layer.
      * @throws Exception 
      */
     public Filter query( String query, ILayer layer ) throws Exception {
-        Filter filter = Filter.INCLUDE;
-        if (!StringUtils.isBlank( query )) {
-            Set<FeatureId> fids = FluentIterable.from( search( query, -1 ) )
-                    .transform( json -> ff.featureId( json.getString( FulltextIndex.FIELD_ID ) ) )
-                    .toSet();
-            filter = !fids.isEmpty() ? ff.id( fids ) : Filter.EXCLUDE;
-        }
-        return filter;
+        return query( query, layer, null );
     }
     
     
-    protected List<JSONObject> search( String query, int maxResults ) {
-        return cache.get( query, key -> {
+    /**
+     * Query this index and restrict the result to the features inside the given
+     * extent. The extent is checked against the bounds stored in the index, so
+     * that the result does not contain the ids of the entire map. The bounds are
+     * approximated; the caller still has to apply the exact extent filter.
+     * <p/>
+     * A simple query without result is retried with similar terms, see
+     * {@link #fuzzySearch(String)}.
+     *
+     * @param query The Lucene query string.
+     * @param layer The layer to query.
+     * @param extent The extent to restrict the result to, or null.
+     * @return The query/filter to apply to the {@link FeatureSource} of the layer.
+     *         The filter contains just the ids of the features of this layer.
+     */
+    public Filter query( String query, ILayer layer, ReferencedEnvelope extent ) throws Exception {
+        boolean[] complete = {true};
+        Optional<FeatureIdSet> ids = ids( query, layer, extent, complete );
+        if (!ids.isPresent()) {
+            return Filter.INCLUDE;
+        }
+        return complete[0] ? ids.get().toFilter() : new FeatureIdFilter( ids.get(), false );
+    }
+
+
+    /**
+     * False if the given filter, returned by {@link #query(String, ILayer,
+     * ReferencedEnvelope)}, comes from a fuzzy search that was stopped, so that
+     * it must not be kept beyond the current request.
+     */
+    public static boolean isCacheable( Filter filter ) {
+        return !(filter instanceof FeatureIdFilter) || ((FeatureIdFilter)filter).isComplete();
+    }
+
+
+    /**
+     * The ids of the best matching features of the given layer, in the order of
+     * the hits of the index, which is ordered by relevance.
+     * <p/>
+     * The ids come from the same cached result as {@link #query(String, ILayer,
+     * ReferencedEnvelope)}, so that a subsequent query does not search again.
+     * Selecting the top ids does not sort the result.
+     * <p/>
+     * The cached result is restricted to the quantized extent, which is bigger
+     * than the given extent. The ids are ranked within the exact extent, so that
+     * features outside do not take the slots of features inside.
+     *
+     * @param k The max number of ids to return.
+     * @return The ids, best first, or {@link Optional#empty()} if the query is
+     *         empty, which matches all features.
+     */
+    public Optional<List<String>> top( String query, ILayer layer, ReferencedEnvelope extent, int k ) throws Exception {
+        Optional<FeatureIdSet> ids = ids( query, layer, extent, new boolean[1] );
+        if (!ids.isPresent()) {
+            return Optional.empty();
+        }
+        FeatureIdSet candidates = ids.get();
+        if (extent != null && !candidates.isEmpty()) {
             try {
-                log.info( "SEARCH: " + query );
-                Iterable<JSONObject> rs = index.search( query, maxResults );
-                return Lists.newArrayList( rs );
+                candidates = candidates.intersecting( extent.transform( AtlasDocumentTransformer.BOUNDS_CRS, true ) );
             }
             catch (Exception e) {
-                log.warn( "", e );
-                return Collections.EMPTY_LIST;
+                log.debug( "Extent: " + e.getLocalizedMessage() );
+            }
+        }
+        return Optional.of( candidates.top( k ) );
+    }
+
+
+    /**
+     * Looks up the texts of the sheets of the given features, {@link SheetRenderer
+     * rendered} at index time, in the {@link SheetStore} and caches them for
+     * {@link #renderedSheet(ILayer, String, LayerSheet)}. Called for the features
+     * actually shown, while they are loaded; just the features not yet cached
+     * are looked up, in one batch.
+     */
+    public void loadRenderedSheets( ILayer layer, Collection<String> fids ) throws Exception {
+        long generation = cache.generation();
+        List<String> missing = fids.stream()
+                .filter( fid -> renderedSheets.getIfPresent( renderedSheetsKey( generation, layer, fid ) ) == null )
+                .collect( Collectors.toList() );
+        if (!missing.isEmpty()) {
+            Map<String,String[]> loaded = sheets.texts( layer.id(), missing );
+            for (String fid : missing) {
+                renderedSheets.put( renderedSheetsKey( generation, layer, fid ), 
+                        loaded.getOrDefault( fid, new String[SheetRenderer.RENDERED.length] ) );
             }
-        });
+        }
+    }
+
+
+    /**
+     * The text of the given sheet of the given feature, {@link SheetRenderer
+     * rendered} at index time, if it was {@link #loadRenderedSheets(ILayer,
+     * Collection) loaded} before. Does not access the index, so this can be
+     * called from the UI thread.
+     *
+     * @param sheet One of the {@link SheetRenderer#RENDERED} sheets.
+     * @return The text, or {@link Optional#empty()} if the sheet has to be
+     *         rendered on demand.
+     */
+    public Optional<String> renderedSheet( ILayer layer, String fid, LayerSheet sheet ) {
+        int i = Arrays.asList( SheetRenderer.RENDERED ).indexOf( sheet );
+        if (i < 0) {
+            return Optional.empty();
+        }
+        String[] texts = renderedSheets.getIfPresent( renderedSheetsKey( cache.generation(), layer, fid ) );
+        return texts != null ? Optional.ofNullable( texts[i] ) : Optional.empty();
+    }
+
+
+    protected String renderedSheetsKey( long generation, ILayer layer, String fid ) {
+        return generation + ":" + AtlasDocumentTransformer.documentId( layer.id(), fid );
+    }
+
+
+    /**
+     * The ids of the features of the given layer that match the given query.
+     * Restricted to the {@link SharedResultCache#quantize(Envelope) quantized}
+     * extent, the result is shared by all sessions, unless it comes from a fuzzy
+     * search that was stopped.
+     *
+     * @param complete Receives false if the result is not {@link
+     *        SearchResult#isComplete() complete}.
+     * @return The ids, or {@link Optional#empty()} if the query is empty.
+     */
+    protected Optional<FeatureIdSet> ids( String query, ILayer layer, ReferencedEnvelope extent, boolean[] complete ) throws Exception {
+        String canonical = canonicalizer.canonical( query != null ? query : "" );
+        if (StringUtils.isBlank( canonical )) {
+            return Optional.empty();
+        }
+        else {
+            long generation = cache.generation();
+            SearchResult result = search( canonical );
+            if (result.size() == 0 && !FUZZY_MAX_TIME.isZero() && canonicalizer.isSimple( canonical )) {
+                result = fuzzySearch( canonical );
+            }
+            complete[0] = result.isComplete();
+            FeatureIdSet ids = result.ids( layer.id() );
+            if (extent != null && !ids.isEmpty()) {
+                try {
+                    Envelope quantized = SharedResultCache.quantize( extent.transform( AtlasDocumentTransformer.BOUNDS_CRS, true ) );
+                    FeatureIdSet all = ids;
+                    ids = result.isComplete()
+                            ? shared.get( generation, canonical, layer.id(), quantized, () -> all.intersecting( quantized ) )
+                            : all.intersecting( quantized );
+                }
+                catch (Exception e) {
+                    // no pre-filter; the extent filter of the caller does the job
+                    log.debug( "Extent: " + e.getLocalizedMessage() );
+                }
+            }
+            return Optional.of( ids );
+        }
+    }
+    
+    
+    /**
+     * Searches the index and returns just the ids of the matching documents,
+     * partitioned by layer. The result is cached; concurrent calls for
+     * the same query wait for one search.
+     *
+     * @param query The {@link QueryCanonicalizer canonical} query.
+     */
+    protected SearchResult search( String query ) {
+        try {
+            return cache.get( query, () -> searchIndex( query ) );
+        }
+        catch (ExecutionException e) {
+            log.warn( "", e.getCause() );
+            return SearchResult.EMPTY;
+        }
+    }
+    
+    
+    /**
+     * Searches for terms similar to the terms of the given query, which had no
+     * result. Each term that is not in the index is replaced by the most frequent
+     * terms within a small edit distance (see {@link TermSuggester#similar}); the
+     * first char of a term is never corrected. Looking for similar terms is
+     * stopped after {@link #FUZZY_MAX_TIME}.
+     * <p/>
+     * The result is cached, unless the search for similar terms was stopped, in
+     * which case it may be incomplete and depend on the load of the system; it is
+     * not {@link SearchResult#isComplete() complete} then.
+     *
+     * @param query The {@link QueryCanonicalizer canonical}, simple query.
+     */
+    protected SearchResult fuzzySearch( String query ) {
+        TermSuggester current = suggester;
+        if (current.size() == 0) {
+            return SearchResult.EMPTY;  // not yet built
+        }
+        String key = FUZZY_KEY_PREFIX + query;
+        try {
+            SearchResult result = cache.get( key, () -> {
+                Timer timer = Timer.startNow();
+                long deadline = System.nanoTime() + FUZZY_MAX_TIME.toNanos();
+                StringBuilder fuzzy = new StringBuilder( 128 );
+                boolean corrected = false;
+                for (String term : query.split( " " )) {
+                    int maxEdits = term.length() < 4 ? 0 : term.length() < 7 ? 1 : 2;
+                    List<String> similar = maxEdits > 0 
+                            ? current.similar( term, maxEdits, FUZZY_MAX_TERMS, deadline ) 
+                            : Collections.EMPTY_LIST;
+                    fuzzy.append( fuzzy.length() > 0 ? " " : "" );
+                    if (similar.isEmpty() || similar.get( 0 ).equals( term )) {
+                        fuzzy.append( escape( term ) );
+                    }
+                    else {
+                        corrected = true;
+                        fuzzy.append( "(" ).append( String.join( " OR ", 
+                                FluentIterable.from( similar ).transform( t -> escape( t ) ) ) ).append( ")" );
+                    }
+                }
+                boolean timedOut = System.nanoTime() > deadline;
+                SearchResult loaded = corrected ? searchIndex( fuzzy.toString() ) : SearchResult.EMPTY;
+                log.info( "FUZZY: " + query + " -> " + fuzzy + " -> " + loaded.size() + " ids (" + timer.elapsedTime() + "ms)" 
+                        + (timedOut ? " TIMEOUT" : "") );
+                return timedOut ? loaded.incomplete() : loaded;
+            });
+            // concurrent callers got the same result; the next one searches again
+            if (!result.isComplete()) {
+                cache.invalidate( key );
+            }
+            return result;
+        }
+        catch (ExecutionException e) {
+            log.warn( "", e.getCause() );
+            return SearchResult.EMPTY;
+        }
+    }
+    
+    
+    /**
+     * Escapes the chars of the given term that have a special meaning in the
+     * Lucene query syntax.
+     */
+    protected static String escape( String term ) {
+        StringBuilder result = new StringBuilder( term.length() + 8 );
+        for (char c : term.toCharArray()) {
+            if ("+-!(){}[]^\"~*?:\\/&|".indexOf( c ) > -1) {
+                result.append( '\\' );
+            }
+            result.append( c );
+        }
+        return result.toString();
+    }
+    
+    
+    /**
+     * Searches the index, not cached. The documents are iterated one by one;
+     * the result keeps just the ids, ranks and bounds.
+     */
+    protected SearchResult searchIndex( String query ) throws Exception {
+        Timer timer = Timer.startNow();
+        SearchResult.Builder builder = new SearchResult.Builder();
+        float[] bounds = new float[4];
+        for (JSONObject json : index.search( query, -1 )) {
+            String encoded = json.optString( AtlasDocumentTransformer.FIELD_BOUNDS, null );
+            String layerId = AtlasDocumentTransformer.layerIdOf( json );
+            if (layerId == null) {
+                continue;  // not yet re-indexed
+            }
+            builder.add( layerId, 
+                    AtlasDocumentTransformer.fidOf( layerId, json.getString( FulltextIndex.FIELD_ID ) ),
+                    AtlasDocumentTransformer.decodeBounds( encoded, bounds, 0 ) ? bounds : null );
+        }
+        SearchResult result = builder.build();
+        log.info( "SEARCH: " + query + " -> " + result.size() + " ids, " 
+                + byteCountToDisplaySize( result.memSize() ) + " (" + timer.elapsedTime() + "ms)" );
+        return result;
     }
     
     
-    protected JSONObject transform( Feature feature ) {
+    /**
+     * The documents of the given layer in the serving index.
+     */
+    protected Iterable<JSONObject> layerDocuments( String layerId ) throws Exception {
+        String token = AtlasDocumentTransformer.token( layerId );
+        return FluentIterable.from( index.search( token, -1 ) )
+                .filter( doc -> token.equals( doc.optString( AtlasDocumentTransformer.FIELD_LAYER ) ) );
+    }
+
+
+    /**
+     * The documents of the given features of the given layer in the serving index.
+     */
+    protected List<JSONObject> documents( String layerId, Collection<String> fids ) throws Exception {
+        List<JSONObject> result = new ArrayList( fids.size() );
+        // stay below the max number of clauses of a Lucene query
+        for (List<String> chunk : Iterables.partition( fids, 256 )) {
+            Set<String> tokens = new HashSet();
+            for (String fid : chunk) {
+                tokens.add( AtlasDocumentTransformer.token( AtlasDocumentTransformer.documentId( layerId, fid ) ) );
+            }
+            for (JSONObject doc : index.search( String.join( " OR ", tokens ), -1 )) {
+                if (tokens.contains( doc.optString( AtlasDocumentTransformer.FIELD_KEY ) )) {
+                    result.add( doc );
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Transforms the given feature of the given layer into an index document.
+     *
+     * @param attributes The names of the attributes to index, or null for all.
+     */
+    protected JSONObject transform( String layerId, Feature feature, Set<String> attributes ) {
+        if (STREAMING_TRANSFORMER) {
+            return AtlasDocumentTransformer.scope( documentTransformer.apply( feature, attributes ), layerId );
+        }
         Object result = feature;
         for (FeatureTransformer transformer : transformers) {
             result = transformer.apply( result );
         }
-        return (JSONObject)result;
+        JSONObject json = (JSONObject)result;
+        if (attributes != null) {
+            for (String key : new ArrayList<>( json.keySet() )) {
+                if (!key.startsWith( "_" ) && !attributes.contains( key )) {
+                    json.remove( key );
+                }
+            }
+        }
+        return AtlasDocumentTransformer.scope( json, layerId );
     }
     
     
@@ -208,6 +898,18 @@ public class AtlasIndex {
      * Re-creates the index. Re-schedules itself with
      * {@link AtlasIndex#RECREATE_TIMEOUT}.
      * <p/>
+     * Layers whose {@link LayerIndexer#fingerprint(FeatureSource) fingerprint} did
+     * not change since the last run are skipped, unless they are {@link #forced} or
+     * {@link IndexMetadata#isDirty(String) dirty}, or the last full sweep is older
+     * than {@link AtlasIndex#SWEEP_INTERVAL}.
+     * If just forced layers (reported via {@link AtlasIndex#featuresChanged(String, Filter)})
+     * are to be indexed, then they are updated in place. Otherwise, in
+     * {@link AtlasIndex#SIDE_BY_SIDE} mode, a new index generation is built in a
+     * sibling directory while the serving index keeps answering queries. Just the
+     * changed layers are read; the documents of all other layers are copied from
+     * the serving index. It is switched to only after it is completely written; a failed or
+     * crashed rebuild leaves the serving index untouched.
+     * <p/>
      * The periodic update also triggers {@link StoreCacheProcessor} to update its
      * cache. We currently do not have a async job to do this. This indexer triggers
      * the update to be done asynchronously.
@@ -215,8 +917,12 @@ public class AtlasIndex {
     protected class IndexerJob
             extends Job {
         
+        /** Ids of layers to be re-indexed regardless of their fingerprint. */
+        Set<String>         forced = ConcurrentHashMap.newKeySet();
+        
         public IndexerJob() {
             super( "Atlas Indexer" );
+            setRule( writeRule );
         }
 
         @Override
@@ -241,22 +947,439 @@ public class AtlasIndex {
         protected void doIndex( IProgressMonitor monitor ) throws Exception {
             try (
                 UnitOfWork uow = ProjectRepository.newUnitOfWork();
-                Updater updater = ((UpdateableFulltextIndex)index).prepareUpdate();
             ){
-                // start layer jobs
                 IMap map = uow.entity( IMap.class, ProjectRepository.ROOT_MAP_ID );
                 log.info( "Map: " + map.label.get() );
-                List<LayerIndexer> layerIndexers = new ArrayList();
+                
+                // fingerprints do not reflect all changes
+                boolean sweep = metadata.sweepTime()
+                        .map( time -> time.plus( SWEEP_INTERVAL ).isBefore( Instant.now() ) ).orElse( true );
+                if (sweep) {
+                    log.info( "Full sweep: ignoring fingerprints" );
+                }
+                
+                // find changed layers
+                Map<ILayer,String> fingerprints = new LinkedHashMap();
+                Map<ILayer,String> changed = new LinkedHashMap();
+                boolean unreported = false;
+                boolean failed = false;
                 for (ILayer layer : map.layers) {
-                    LayerIndexer layerIndexer = new LayerIndexer( layer, updater, AtlasIndex.this );
-                    layerIndexer.schedule();
-                    layerIndexers.add( layerIndexer );
+                    try {
+                        Optional<FeatureLayer> fl = FeatureLayer.of( layer ).get();
+                        if (!fl.isPresent() || monitor.isCanceled()) {
+                            continue;
+                        }
+                        String fingerprint = LayerIndexer.fingerprint( layer, fl.get().featureSource() );
+                        fingerprints.put( layer, fingerprint );
+                        // dirty: reported before a restart
+                        boolean isForced = forced.remove( layer.id() ) | metadata.isDirty( layer.id() );
+                        if (!isForced && !sweep
+                                && metadata.fingerprint( layer.id() ).map( fingerprint::equals ).orElse( false )) {
+                            log.info( "Unchanged: " + layer.label.get() );
+                            continue;
+                        }
+                        unreported |= !isForced;
+                        changed.put( layer, fingerprint );
+                    }
+                    catch (Exception e) {
+                        log.warn( "Layer: " + layer.label.get(), e );
+                        metadata.removeFingerprint( layer.id() );
+                        failed = true;
+                    }
+                }
+                
+                boolean complete = !failed;
+                if (changed.isEmpty()) {
+                    log.info( "Done: " + map.label.get() + " (no changes)" );
+                }
+                // a new generation would miss failed layers
+                else if (SIDE_BY_SIDE && unreported && !failed) {
+                    complete &= rebuild( fingerprints, changed, monitor );
+                }
+                else {
+                    complete &= update( changed, changed.size() == fingerprints.size(), monitor );
                 }
-                // wait for layer jobs
-                UIJob.joinJobs( layerIndexers );
+                complete &= !monitor.isCanceled();
+                metadata.setConsistent( complete );
+                if (complete) {
+                    metadata.setBuildTime( Instant.now() );
+                    if (sweep) {
+                        metadata.setSweepTime( Instant.now() );
+                    }
+                }
+                metadata.store();
+            }
+        }
 
+        
+        /**
+         * Re-indexes the given layers in the serving index.
+         *
+         * @param all True if the given layers are all layers of the map.
+         * @return True if all layers were indexed successfully.
+         */
+        protected boolean update( Map<ILayer,String> fingerprints, boolean all, IProgressMonitor monitor ) throws Exception {
+            // a crash while writing in place leaves the index partially updated
+            metadata.setConsistent( false ).store();
+            try (
+                Updater updater = ((UpdateableFulltextIndex)index).prepareUpdate();
+                Updater sheetUpdater = sheets.prepareUpdate();
+            ){
+                // remove the current documents, so that deleted features are removed
+                // and the terms of the replaced documents are subtracted
+                TermSuggester.Builder terms = new TermSuggester.Builder();
+                for (ILayer layer : fingerprints.keySet()) {
+                    for (JSONObject doc : layerDocuments( layer.id() )) {
+                        updater.remove( doc.getString( FulltextIndex.FIELD_ID ) );
+                        sheetUpdater.remove( doc.getString( FulltextIndex.FIELD_ID ) );
+                        terms.remove( doc );
+                    }
+                }
+                IndexPipeline pipeline = indexLayers( fingerprints, updater, sheetUpdater, terms, monitor );
+                sheetUpdater.apply();
                 updater.apply();
-                log.info( "Done: " + map.label.get() );
+                // an EMPTY suggester stays empty (proposals from index) until all layers are seen
+                if (suggester.size() > 0 || all) {
+                    suggester = suggester.merge( terms );
+                    suggester.store( suggesterFileOf( metadata.indexGeneration() ) );
+                }
+                indexUpdated();
+                rememberFingerprints( fingerprints, pipeline, monitor );
+                log.info( "Updated: " + fingerprints.size() + " layers, " + pipeline.count() + " features" );
+                return fingerprints.keySet().stream().noneMatch( layer -> pipeline.isFailed( layer.id() ) );
+            }
+        }
+        
+
+        /**
+         * Builds a new generation of the index with the given layers, and switches
+         * to it if all layers were indexed successfully. Just the changed layers
+         * are read from their data sources; the documents of the other layers are
+         * copied from the serving index.
+         *
+         * @param fingerprints All layers of the new generation.
+         * @param changed The layers to be read.
+         * @return True if the new generation is serving.
+         */
+        protected boolean rebuild( Map<ILayer,String> fingerprints, Map<ILayer,String> changed, 
+                IProgressMonitor monitor ) throws Exception {
+            int generation = metadata.indexGeneration() + 1;
+            File dir = indexDirOf( generation );
+            FileUtils.deleteDirectory( dir );
+            log.info( "Rebuilding: " + dir.getName() );
+            
+            File sheetsDir = sheetsDirOf( generation );
+            FileUtils.deleteDirectory( sheetsDir );
+            
+            LuceneFulltextIndex newIndex = openIndex( dir );
+            SheetStore newSheets = new SheetStore( openIndex( sheetsDir ) );
+            boolean switched = false;
+            try {
+                IndexPipeline pipeline;
+                TermSuggester.Builder terms = new TermSuggester.Builder();
+                boolean complete;
+                try (
+                    Updater updater = newIndex.prepareUpdate();
+                    Updater sheetUpdater = newSheets.prepareUpdate();
+                ){
+                    pipeline = indexLayers( changed, updater, sheetUpdater, terms, monitor );
+                    int copied = 0;
+                    for (ILayer layer : fingerprints.keySet()) {
+                        if (!changed.containsKey( layer ) && !monitor.isCanceled()) {
+                            try {
+                                copied += copyLayer( layer, updater, sheetUpdater, terms );
+                            }
+                            catch (Exception e) {
+                                log.warn( "Copy: " + layer.label.get(), e );
+                                pipeline.failed( layer.id() );
+                            }
+                        }
+                    }
+                    log.info( "Copied: " + (fingerprints.size() - changed.size()) + " layers, " + copied + " features" );
+                    complete = !monitor.isCanceled() && fingerprints.keySet().stream()
+                            .noneMatch( layer -> pipeline.isFailed( layer.id() ) );
+                    if (complete) {
+                        sheetUpdater.apply();
+                        updater.apply();
+                    }
+                }
+                if (!complete) {
+                    log.warn( "Rebuild failed or canceled. Keeping: " + indexDir.getName() );
+                    return false;
+                }
+                fsync( dir );
+                fsync( sheetsDir );
+                TermSuggester newSuggester = terms.build();
+                newSuggester.store( suggesterFileOf( generation ) );
+                
+                // commit point: the metadata names the new generation
+                metadata.setIndexGeneration( generation );
+                metadata.removeFingerprints();
+                rememberFingerprints( fingerprints, pipeline, monitor );
+                metadata.store();
+                
+                // switch
+                LuceneFulltextIndex oldIndex = index;
+                SheetStore oldSheets = sheets;
+                File oldDir = indexDir;
+                index = newIndex;
+                sheets = newSheets;
+                indexDir = dir;
+                suggester = newSuggester;
+                switched = true;
+                indexUpdated();
+                log.info( "Switched: " + oldDir.getName() + " -> " + dir.getName() + " (" + pipeline.count() + " features)" );
+                
+                retire( oldIndex, oldDir, suggesterFileOf( generation - 1 ), oldSheets, sheetsDirOf( generation - 1 ) );
+                return true;
+            }
+            finally {
+                if (!switched) {
+                    newIndex.close();
+                    newSheets.close();
+                    FileUtils.deleteQuietly( dir );
+                    FileUtils.deleteQuietly( suggesterFileOf( generation ) );
+                    FileUtils.deleteQuietly( sheetsDir );
+                }
+            }
+        }
+
+        
+        /**
+         * Copies the documents and the rendered sheets of the given, unchanged
+         * layer from the serving index into the given updaters.
+         *
+         * @return The number of documents copied.
+         */
+        protected int copyLayer( ILayer layer, Updater updater, Updater sheetUpdater, TermSuggester.Builder terms ) 
+                throws Exception {
+            int count = 0;
+            for (JSONObject doc : layerDocuments( layer.id() )) {
+                updater.store( doc, true );
+                terms.add( doc );
+                count ++;
+            }
+            for (JSONObject doc : sheets.layerDocuments( layer.id() )) {
+                sheetUpdater.store( doc, true );
+            }
+            return count;
+        }
+
+        
+        protected IndexPipeline indexLayers( Map<ILayer,String> fingerprints, Updater updater, Updater sheetUpdater,
+                TermSuggester.Builder terms, IProgressMonitor monitor ) throws Exception {
+            // read layers concurrently; transform/store in parallel
+            IndexPipeline pipeline = new IndexPipeline( AtlasIndex.this, updater, sheetUpdater, terms, workers, WORKERS * 2 );
+            monitor.beginTask( getName(), fingerprints.size() );
+            List<Future<?>> reads = new ArrayList();
+            for (ILayer layer : fingerprints.keySet()) {
+                reads.add( readers.submit( () -> {
+                    if (monitor.isCanceled()) {
+                        return;
+                    }
+                    SESSION_PROVIDER.mapContext( updateContext.getSessionKey(), true );
+                    try {
+                        new LayerIndexer( layer, pipeline ).run( monitor );
+                    }
+                    catch (Exception e) {
+                        log.warn( "Layer: " + layer.label.get(), e );
+                        pipeline.failed( layer.id() );
+                    }
+                    finally {
+                        SESSION_PROVIDER.unmapContext();
+                    }
+                }));
+            }
+            for (Future<?> read : reads) {
+                read.get();
+                monitor.worked( 1 );
+            }
+            // wait for pending batches
+            pipeline.await();
+            return pipeline;
+        }
+
+        
+        /**
+         * Remembers fingerprints of successfully indexed layers.
+         */
+        protected void rememberFingerprints( Map<ILayer,String> fingerprints, IndexPipeline pipeline, IProgressMonitor monitor ) {
+            fingerprints.forEach( (layer, fingerprint) -> {
+                if (!pipeline.isFailed( layer.id() ) && !monitor.isCanceled()) {
+                    metadata.setFingerprint( layer.id(), fingerprint );
+                    // modifications reported meanwhile are applied by the UpdaterJob
+                    if (!updateJob.pending.containsKey( layer.id() )) {
+                        metadata.setDirty( layer.id(), false );
+                    }
+                }
+                else {
+                    metadata.removeFingerprint( layer.id() );
+                }
+            });
+        }
+
+        
+        /**
+         * Closes and deletes the given, replaced index generation after
+         * {@link AtlasIndex#RETIRE_DELAY}, so that running queries can complete.
+         */
+        protected void retire( LuceneFulltextIndex oldIndex, File oldDir, File oldSuggester, 
+                SheetStore oldSheets, File oldSheetsDir ) {
+            Job job = new Job( "Atlas Index Retire" ) {
+                @Override
+                protected IStatus run( IProgressMonitor monitor2 ) {
+                    oldIndex.close();
+                    oldSheets.close();
+                    FileUtils.deleteQuietly( oldDir );
+                    FileUtils.deleteQuietly( oldSuggester );
+                    FileUtils.deleteQuietly( oldSheetsDir );
+                    log.info( "Deleted: " + oldDir.getName() );
+                    return Status.OK_STATUS;
+                }
+            };
+            job.setSystem( true );
+            job.schedule( RETIRE_DELAY.toMillis() );
+        }
+    }
+    
+
+    /**
+     * Incrementally updates the documents of the features that were reported via
+     * {@link AtlasIndex#featuresChanged(String, Filter)}. Features that no longer
+     * exist are removed from the index.
+     * <p/>
+     * The index is marked inconsistent while the updates are applied, and the
+     * layers stay {@link IndexMetadata#isDirty(String) dirty} until then, so that
+     * the {@link IndexerJob} repairs lost updates after a crash or restart.
+     */
+    protected class UpdaterJob
+            extends Job {
+        
+        /** Layer id -> ids of the modified features. */
+        ConcurrentMap<String,Set<String>>   pending = new ConcurrentHashMap();
+        
+        public UpdaterJob() {
+            super( "Atlas Index Updater" );
+            setRule( writeRule );
+            setSystem( true );
+        }
+
+        @Override
+        protected IStatus run( IProgressMonitor monitor ) {
+            try {
+                SESSION_PROVIDER.mapContext( updateContext.getSessionKey(), true );
+                doUpdate( monitor );
+                return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+            }
+            catch (Exception e) {
+                log.warn( "", e );
+                throw Throwables.propagate( e );
+            }
+            finally {
+                SESSION_PROVIDER.unmapContext();
+            }
+        }
+
+
+        /**
+         * Atomically merges the given fids with the pending fids of the layer and
+         * schedules this job.
+         */
+        public void addPending( String layerId, Set<String> fids ) {
+            pending.merge( layerId, fids, (current, added) -> { 
+                current.addAll( added ); 
+                return current; 
+            });
+            schedule( UPDATE_DELAY.toMillis() );
+        }
+
+
+        protected void doUpdate( IProgressMonitor monitor ) throws Exception {
+            // taken from pending; given back if not applied
+            Map<String,Set<String>> batch = new HashMap();
+            for (String layerId : new ArrayList<>( pending.keySet() )) {
+                Set<String> fids = pending.remove( layerId );
+                if (fids != null) {
+                    batch.put( layerId, fids );
+                }
+            }
+            boolean applied = false;
+            try (
+                UnitOfWork uow = ProjectRepository.newUnitOfWork();
+                Updater updater = ((UpdateableFulltextIndex)index).prepareUpdate();
+                Updater sheetUpdater = sheets.prepareUpdate();
+            ){
+                int count = 0;
+                TermSuggester.Builder terms = new TermSuggester.Builder();
+                for (Map.Entry<String,Set<String>> entry : batch.entrySet()) {
+                    String layerId = entry.getKey();
+                    Set<String> fids = entry.getValue();
+                    ILayer layer = uow.entity( ILayer.class, layerId );
+                    Optional<FeatureLayer> fl = layer != null ? FeatureLayer.of( layer ).get() : Optional.empty();
+                    if (!fl.isPresent()) {
+                        continue;
+                    }
+                    try {
+                        // remove all; re-store features that still exist
+                        for (JSONObject doc : documents( layerId, fids )) {
+                            terms.remove( doc );
+                        }
+                        for (String fid : fids) {
+                            updater.remove( AtlasDocumentTransformer.documentId( layerId, fid ) );
+                            sheetUpdater.remove( AtlasDocumentTransformer.documentId( layerId, fid ) );
+                        }
+                        Filter filter = ff.id( FluentIterable.from( fids ).transform( fid -> ff.featureId( fid ) ).toSet() );
+                        FeatureSource fs = fl.get().featureSource();
+                        Set<String> attributes = LayerIndexer.indexedAttributes( layer, fs ).orElse( null );
+                        SheetRenderer renderer = new SheetRenderer( layer );
+                        try (
+                            FeatureIterator it = fs.getFeatures( filter ).features();
+                        ){
+                            while (it.hasNext()) {
+                                Feature feature = it.next();
+                                JSONObject doc = transform( layerId, feature, attributes );
+                                updater.store( doc, true );
+                                terms.add( doc );
+                                Optional<JSONObject> rendered = renderer.render( feature );
+                                if (rendered.isPresent()) {
+                                    sheetUpdater.store( rendered.get(), true );
+                                }
+                            }
+                        }
+                        count += fids.size();
+                    }
+                    catch (Exception e) {
+                        // the documents of the layer may be partially updated
+                        log.warn( "Layer: " + layerId + ", re-indexing entire layer.", e );
+                        indexer.forced.add( layerId );
+                        indexer.schedule( UPDATE_DELAY.toMillis() );
+                    }
+                }
+                // a crash while writing in place leaves the index partially updated;
+                // the layers stay dirty until applied
+                boolean consistent = metadata.isConsistent();
+                metadata.setConsistent( false ).store();
+                sheetUpdater.apply();
+                updater.apply();
+                applied = true;
+                for (String layerId : batch.keySet()) {
+                    if (!pending.containsKey( layerId ) && !indexer.forced.contains( layerId )) {
+                        metadata.setDirty( layerId, false );
+                    }
+                }
+                metadata.setConsistent( consistent ).store();
+                // in memory only; persisted by the next IndexerJob run
+                if (suggester.size() > 0) {
+                    suggester = suggester.update( terms );
+                }
+                indexUpdated();
+                log.info( "Updated: " + count + " features" );
+            }
+            finally {
+                if (!applied) {
+                    log.warn( "Update failed, re-scheduling: " + batch.keySet() );
+                    batch.forEach( (layerId, fids) -> addPending( layerId, fids ) );
+                }
             }
         }
     }
@@ -14,6 +14,8 @@
  */
 package io.mapzone.atlas.index;
 
+import java.util.function.Consumer;
+
 import org.polymap.rhei.fulltext.indexing.FulltextTokenizer;
 
 /**
@@ -49,6 +51,46 @@ class AtlasTokenizer
             // http://polymap.org/atlas/ticket/77
             case '(': return false;
             case ')': return false;
+            default: return c < 128 || isTokenCharUnicode( c );
+        }
+    }
+    
+    
+    /**
+     * Splits the given text into tokens the same way the index does, so that
+     * terms outside the index (proposals, canonical queries) match the terms of
+     * the index. The tokens are passed as is, not lower cased or folded.
+     */
+    public void tokenize( String text, Consumer<String> consumer ) {
+        int start = -1;
+        for (int i=0; i<=text.length(); i++) {
+            boolean tokenChar = i < text.length() && isTokenChar( text.charAt( i ) )
+                    && !Character.isWhitespace( text.charAt( i ) );
+            if (tokenChar && start == -1) {
+                start = i;
+            }
+            else if (!tokenChar && start != -1) {
+                consumer.accept( text.substring( start, i ) );
+                start = -1;
+            }
+        }
+    }
+    
+    
+    /**
+     * Non-ASCII spaces (no-break space), dashes and quotes („“ »«) are
+     * delimiters too.
+     */
+    protected boolean isTokenCharUnicode( int c ) {
+        if (Character.isSpaceChar( c )) {
+            return false;
+        }
+        switch (Character.getType( c )) {
+            case Character.DASH_PUNCTUATION: return false;
+            case Character.START_PUNCTUATION: return false;
+            case Character.END_PUNCTUATION: return false;
+            case Character.INITIAL_QUOTE_PUNCTUATION: return false;
+            case Character.FINAL_QUOTE_PUNCTUATION: return false;
             default: return true;
         }
     }
@@ -0,0 +1,219 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.polymap.core.data.DataPlugin.ff;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.opengis.feature.Feature;
+import org.opengis.filter.FilterVisitor;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.Identifier;
+
+/**
+ * An {@link Id} filter backed by a {@link FeatureIdSet}, instead of a
+ * {@link Set} of {@link Identifier} objects.
+ * <p/>
+ * If all ids consist of a common prefix and a numeric suffix ("Orte.1234"), which
+ * is what most data stores generate, then just the suffixes are kept in a sorted
+ * long array. {@link #evaluate(Object)} is a binary search, without creating any
+ * objects per feature. Data stores that evaluate the filter while reading
+ * (instead of translating it into their query language) get this for free.
+ * Stores that push {@link Id} filters down request {@link #getIdentifiers()},
+ * which are created on every call and not kept by the filter, which is shared
+ * by all sessions and cached with its {@link FeatureIdSet}.
+ *
+ * @author Falko Bräutigam
+ */
+class FeatureIdFilter
+        implements Id {
+
+    /** The common prefix of all ids; null if the ids are not numeric. */
+    private String              prefix;
+
+    /** Sorted numeric suffixes; null if the ids are not numeric. */
+    private long[]              suffixes;
+
+    /** Used if the ids are not numeric. */
+    private FeatureIdSet        ids;
+
+    private int                 size;
+
+    private boolean             complete;
+
+
+    public FeatureIdFilter( FeatureIdSet ids ) {
+        this( ids, true );
+    }
+
+
+    /**
+     * @param complete False if the ids come from an incomplete
+     *        {@link SearchResult}, see {@link #isComplete()}.
+     */
+    public FeatureIdFilter( FeatureIdSet ids, boolean complete ) {
+        this.complete = complete;
+        this.size = ids.size();
+        this.prefix = commonPrefix( ids );
+        if (prefix != null) {
+            suffixes = new long[size];
+            int i = 0;
+            for (String id : ids) {
+                suffixes[i++] = parseSuffix( id );
+            }
+            Arrays.sort( suffixes );
+        }
+        else {
+            this.ids = ids;
+        }
+    }
+
+
+    /**
+     * The prefix that all ids share, followed by a numeric suffix.
+     *
+     * @return The prefix, or null if the ids do not have this form.
+     */
+    protected String commonPrefix( FeatureIdSet set ) {
+        String result = null;
+        for (String id : set) {
+            int dot = id.lastIndexOf( '.' );
+            if (dot < 0 || (result != null && !id.startsWith( result )) || (result == null && dot == 0)) {
+                return null;
+            }
+            if (result == null) {
+                result = id.substring( 0, dot + 1 );
+            }
+            if (result.length() != dot + 1 || parseSuffix( id ) < 0) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Parses the suffix after {@link #prefix} of the given id. Just canonical
+     * decimals are accepted (no sign, no leading zeros), so that parsed values
+     * are unique.
+     *
+     * @return The suffix, or -1 if the suffix is not such a decimal.
+     */
+    protected long parseSuffix( String id ) {
+        int start = id.lastIndexOf( '.' ) + 1;
+        int length = id.length() - start;
+        if (length == 0 || length > 18 || (length > 1 && id.charAt( start ) == '0')) {
+            return -1;
+        }
+        long result = 0;
+        for (int i=start; i<id.length(); i++) {
+            char c = id.charAt( i );
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * False if the ids may be incomplete, so that this filter must not be kept
+     * beyond the current request.
+     *
+     * @see AtlasIndex#isCacheable(org.opengis.filter.Filter)
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+
+    public boolean contains( String id ) {
+        if (prefix != null) {
+            if (!id.startsWith( prefix ) || id.lastIndexOf( '.' ) != prefix.length() - 1) {
+                return false;
+            }
+            long suffix = parseSuffix( id );
+            return suffix >= 0 && Arrays.binarySearch( suffixes, suffix ) >= 0;
+        }
+        else {
+            return ids.contains( id );
+        }
+    }
+
+
+    @Override
+    public boolean evaluate( Object obj ) {
+        return obj instanceof Feature && contains( ((Feature)obj).getIdentifier().getID() );
+    }
+
+
+    @Override
+    public Object accept( FilterVisitor visitor, Object extraData ) {
+        return visitor.visit( this, extraData );
+    }
+
+
+    @Override
+    public Set<Identifier> getIdentifiers() {
+        Set<Identifier> result = new LinkedHashSet( size * 2 );
+        if (prefix != null) {
+            for (long suffix : suffixes) {
+                result.add( ff.featureId( prefix + suffix ) );
+            }
+        }
+        else {
+            for (String id : ids) {
+                result.add( ff.featureId( id ) );
+            }
+        }
+        return Collections.unmodifiableSet( result );
+    }
+
+
+    @Override
+    public Set<Object> getIDs() {
+        Set<Object> result = new HashSet( size * 2 );
+        for (Identifier identifier : getIdentifiers()) {
+            result.add( identifier.getID() );
+        }
+        return result;
+    }
+
+
+    /**
+     * The approximate size of this filter in memory.
+     */
+    public int memSize() {
+        return 48 + (prefix != null ? 16 + (prefix.length() * 2) + (suffixes.length * 8) : 0);
+    }
+
+
+    @Override
+    public String toString() {
+        return "[ " + size + " feature ids" + (prefix != null ? ", " + prefix + "*" : "") + " ]";
+    }
+
+}
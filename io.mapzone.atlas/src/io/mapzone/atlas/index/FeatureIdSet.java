@@ -0,0 +1,289 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.opengis.filter.Filter;
+import org.opengis.filter.identity.FeatureId;
+
+import com.google.common.collect.Iterators;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * An immutable, compact set of feature ids, the result of a query of the
+ * {@link AtlasIndex}. The ids are kept in a sorted array, which is much smaller
+ * than the documents or a {@link Set} of {@link FeatureId}s.
+ * <p/>
+ * Optionally the bounds of the features are kept in a float array aligned with the
+ * ids, so that the set can be restricted to an extent without another query.
+ * <p/>
+ * The rank of each id, its position in the hit list of the index, is kept as
+ * well; {@link #top(int)} returns the best ranked ids.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureIdSet
+        implements Iterable<String> {
+
+    public static final FeatureIdSet    EMPTY = new FeatureIdSet( new String[0], null, new int[0] );
+
+    /**
+     * Collects ids, in the order of their rank, and finally creates a
+     * {@link FeatureIdSet}.
+     */
+    public static class Builder {
+
+        private List<String>    ids = new ArrayList( 256 );
+
+        /** minX, minY, maxX, maxY per id; NaN if unknown. Null if no bounds were added. */
+        private float[]         bounds;
+
+        public Builder add( String id ) {
+            return add( id, null );
+        }
+
+        /**
+         * Adds an id with the bounds of the feature in
+         * {@link AtlasDocumentTransformer#BOUNDS_CRS}.
+         *
+         * @param featureBounds minX, minY, maxX, maxY, or null if unknown.
+         */
+        public Builder add( String id, float[] featureBounds ) {
+            if (featureBounds != null && bounds == null) {
+                bounds = new float[Math.max( 1024, (ids.size() + 1) * 8 )];
+                Arrays.fill( bounds, Float.NaN );
+            }
+            if (bounds != null) {
+                int b = ids.size() * 4;
+                if (b + 4 > bounds.length) {
+                    int oldLength = bounds.length;
+                    bounds = Arrays.copyOf( bounds, oldLength * 2 );
+                    Arrays.fill( bounds, oldLength, bounds.length, Float.NaN );
+                }
+                if (featureBounds != null) {
+                    System.arraycopy( featureBounds, 0, bounds, b, 4 );
+                }
+            }
+            ids.add( id );
+            return this;
+        }
+
+        public FeatureIdSet build() {
+            if (ids.isEmpty()) {
+                return EMPTY;
+            }
+            // sort indices (stable, so the best rank of a duplicate id comes
+            // first), then copy ids, ranks and bounds in that order
+            Integer[] order = new Integer[ids.size()];
+            for (int i=0; i<order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort( order, Comparator.comparing( i -> ids.get( i ) ) );
+            String[] sortedIds = new String[order.length];
+            int[] sortedRanks = new int[order.length];
+            float[] sortedBounds = bounds != null ? new float[order.length * 4] : null;
+            int size = 0;
+            for (int i : order) {
+                if (size == 0 || !ids.get( i ).equals( sortedIds[size-1] )) {
+                    sortedIds[size] = ids.get( i );
+                    sortedRanks[size] = i;
+                    if (bounds != null) {
+                        System.arraycopy( bounds, i * 4, sortedBounds, size * 4, 4 );
+                    }
+                    size ++;
+                }
+            }
+            return size < order.length
+                    ? new FeatureIdSet( Arrays.copyOf( sortedIds, size ), 
+                            bounds != null ? Arrays.copyOf( sortedBounds, size * 4 ) : null,
+                            Arrays.copyOf( sortedRanks, size ) )
+                    : new FeatureIdSet( sortedIds, sortedBounds, sortedRanks );
+        }
+    }
+
+
+    // instance *******************************************
+
+    private String[]        ids;
+
+    /** minX, minY, maxX, maxY per id; NaN if unknown. Null if no bounds are known. */
+    private float[]         bounds;
+
+    /** The position of each id in the hit list of the index; lower is better. */
+    private int[]           ranks;
+
+    /** Lazily created by {@link #toFilter()}; shared by all users of this set. */
+    private volatile Filter filter;
+
+
+    protected FeatureIdSet( String[] ids, float[] bounds, int[] ranks ) {
+        this.ids = ids;
+        this.bounds = bounds;
+        this.ranks = ranks;
+    }
+
+
+    public int size() {
+        return ids.length;
+    }
+
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+
+    public boolean contains( String id ) {
+        return Arrays.binarySearch( ids, id ) >= 0;
+    }
+
+
+    @Override
+    public Iterator<String> iterator() {
+        return Iterators.forArray( ids );
+    }
+
+
+    /**
+     * The ids of this set whose bounds intersect the given extent. Ids without
+     * known bounds are kept, so that the result is always a superset of the
+     * features inside the extent.
+     *
+     * @param extent The extent in {@link AtlasDocumentTransformer#BOUNDS_CRS}.
+     * @return This set, if all ids intersect, or a newly created set.
+     */
+    public FeatureIdSet intersecting( Envelope extent ) {
+        if (bounds == null) {
+            return this;
+        }
+        String[] resultIds = new String[ids.length];
+        float[] resultBounds = new float[bounds.length];
+        int[] resultRanks = new int[ids.length];
+        int size = 0;
+        for (int i=0; i<ids.length; i++) {
+            int b = i * 4;
+            if (Float.isNaN( bounds[b] )
+                    || (bounds[b] <= extent.getMaxX() && bounds[b+2] >= extent.getMinX()
+                    && bounds[b+1] <= extent.getMaxY() && bounds[b+3] >= extent.getMinY())) {
+                resultIds[size] = ids[i];
+                resultRanks[size] = ranks[i];
+                System.arraycopy( bounds, b, resultBounds, size * 4, 4 );
+                size ++;
+            }
+        }
+        return size == ids.length ? this
+                : size == 0 ? EMPTY
+                : new FeatureIdSet( Arrays.copyOf( resultIds, size ), Arrays.copyOf( resultBounds, size * 4 ), 
+                        Arrays.copyOf( resultRanks, size ) );
+    }
+
+
+    /**
+     * The best ranked ids of this set. Selects with a max-heap of the k best
+     * ranks seen so far, so that just k ints are allocated, whatever the ranks.
+     *
+     * @param k The max number of ids to return.
+     * @return The ids, best first.
+     */
+    public List<String> top( int k ) {
+        int size = Math.max( 0, Math.min( k, ids.length ) );
+        // indexes of ids; heap[0] is the worst of the best
+        int[] heap = new int[size];
+        for (int i=0; i<ids.length && size > 0; i++) {
+            if (i < size) {
+                heap[i] = i;
+                siftUp( heap, i );
+            }
+            else if (ranks[i] < ranks[heap[0]]) {
+                heap[0] = i;
+                siftDown( heap, 0, size );
+            }
+        }
+        // heap sort: the worst goes to the end
+        for (int end=size-1; end>0; end--) {
+            int worst = heap[0];
+            heap[0] = heap[end];
+            heap[end] = worst;
+            siftDown( heap, 0, end );
+        }
+        List<String> result = new ArrayList( size );
+        for (int i : heap) {
+            result.add( ids[i] );
+        }
+        return result;
+    }
+
+
+    private void siftUp( int[] heap, int pos ) {
+        for (int parent=(pos-1)/2; pos > 0 && ranks[heap[pos]] > ranks[heap[parent]]; pos=parent, parent=(pos-1)/2) {
+            int swap = heap[pos];
+            heap[pos] = heap[parent];
+            heap[parent] = swap;
+        }
+    }
+
+
+    private void siftDown( int[] heap, int pos, int size ) {
+        for (int child=pos*2+1; child < size; pos=child, child=pos*2+1) {
+            if (child + 1 < size && ranks[heap[child+1]] > ranks[heap[child]]) {
+                child ++;
+            }
+            if (ranks[heap[pos]] >= ranks[heap[child]]) {
+                return;
+            }
+            int swap = heap[pos];
+            heap[pos] = heap[child];
+            heap[child] = swap;
+        }
+    }
+
+
+    /**
+     * An Id {@link Filter} of the ids of this set. The filter does not create a
+     * {@link FeatureId} per id unless the data store asks for them. The filter is
+     * created once per set, so all sessions sharing a set share its filter.
+     *
+     * @see FeatureIdFilter
+     * @return The {@link Filter}, or {@link Filter#EXCLUDE} if this set is empty.
+     */
+    public Filter toFilter() {
+        if (isEmpty()) {
+            return Filter.EXCLUDE;
+        }
+        if (filter == null) {
+            filter = new FeatureIdFilter( this );
+        }
+        return filter;
+    }
+
+
+    /**
+     * The approximate size of this set in memory.
+     */
+    public int memSize() {
+        int result = 16 + 16 + (ids.length * 4) + (16 + ranks.length * 4) + (bounds != null ? 16 + (bounds.length * 4) : 0);
+        for (String id : ids) {
+            result += 40 + (id.length() * 2);
+        }
+        return result;
+    }
+
+}
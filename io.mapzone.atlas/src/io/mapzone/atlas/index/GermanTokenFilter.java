@@ -0,0 +1,150 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.Set;
+
+import java.text.Normalizer;
+
+import org.json.JSONObject;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+import org.polymap.rhei.fulltext.QueryDecorator;
+import org.polymap.rhei.fulltext.indexing.FulltextTokenFilter;
+
+/**
+ * Folds German umlauts and ß ("Müritz" -> "Mueritz", "Straße" -> "Strasse") and
+ * removes the diacritics of other chars ("Château" -> "Chateau"), so that all
+ * spellings of a name find each other without wildcards.
+ * <p/>
+ * Used as {@link FulltextTokenFilter} of the index (after
+ * {@link org.polymap.rhei.fulltext.indexing.LowerCaseTokenFilter}) and as
+ * {@link QueryDecorator} for proposals and queries. {@link #fold(String)} does
+ * not change the Lucene query syntax, so whole queries can be folded. Stop words
+ * are removed from simple queries by {@link QueryCanonicalizer}.
+ *
+ * @author Falko Bräutigam
+ */
+class GermanTokenFilter
+        extends QueryDecorator
+        implements FulltextTokenFilter {
+
+    /**
+     * Fold umlauts and diacritics (default: true). Changing this changes the
+     * terms of the index and forces a re-index.
+     */
+    public static final boolean     FOLD = Boolean.parseBoolean( System.getProperty( "io.mapzone.atlas.analysis.fold", "true" ) );
+
+    /** Remove {@link #STOP_WORDS} from simple queries (default: true). */
+    public static final boolean     REMOVE_STOP_WORDS = Boolean.parseBoolean( System.getProperty( "io.mapzone.atlas.analysis.stopWords", "true" ) );
+
+    /** Lower case, folded. */
+    public static final Set<String> STOP_WORDS = ImmutableSet.of(
+            "der", "die", "das", "des", "dem", "den", "ein", "eine", "einer", "eines", "einem", "einen",
+            "und", "oder", "in", "im", "am", "an", "auf", "aus", "bei", "von", "vom", "zu", "zum", "zur",
+            "mit", "fuer", "ueber", "unter", "nach" );
+
+    /**
+     * Folds the given String, if {@link #FOLD} is set. Returns the String itself
+     * if it contains nothing to fold, which is the common case.
+     */
+    public static String fold( String s ) {
+        if (!FOLD) {
+            return s;
+        }
+        int i = 0;
+        while (i < s.length() && s.charAt( i ) < 128) {
+            i ++;
+        }
+        if (i == s.length()) {
+            return s;
+        }
+        // decomposed umlauts (u + U+0308) first
+        s = Normalizer.normalize( s, Normalizer.Form.NFC );
+        StringBuilder result = new StringBuilder( s.length() + 8 );
+        boolean other = false;
+        for (i=0; i<s.length(); i++) {
+            char c = s.charAt( i );
+            switch (c) {
+                case 'ä': result.append( "ae" ); break;
+                case 'ö': result.append( "oe" ); break;
+                case 'ü': result.append( "ue" ); break;
+                case 'Ä': result.append( "Ae" ); break;
+                case 'Ö': result.append( "Oe" ); break;
+                case 'Ü': result.append( "Ue" ); break;
+                case 'ß': result.append( "ss" ); break;
+                default: {
+                    other |= c >= 128;
+                    result.append( c );
+                }
+            }
+        }
+        if (other) {
+            String decomposed = Normalizer.normalize( result, Normalizer.Form.NFD );
+            result.setLength( 0 );
+            for (int j=0; j<decomposed.length(); j++) {
+                char c = decomposed.charAt( j );
+                if (Character.getType( c ) != Character.NON_SPACING_MARK) {
+                    result.append( c );
+                }
+            }
+        }
+        return result.toString();
+    }
+
+
+    // instance *******************************************
+
+    /**
+     * Creates a {@link FulltextTokenFilter}.
+     */
+    public GermanTokenFilter() {
+        super( null );
+    }
+
+    /**
+     * Creates a {@link QueryDecorator}.
+     */
+    public GermanTokenFilter( FulltextIndex next ) {
+        super( next );
+    }
+
+
+    @Override
+    public String apply( String term ) {
+        return fold( term );
+    }
+
+
+    @Override
+    public Iterable<String> propose( String term, int maxResults, String field ) throws Exception {
+        return super.propose( fold( term ), maxResults, field );
+    }
+
+
+    @Override
+    public long count( String query ) throws Exception {
+        return super.count( fold( query ) );
+    }
+
+
+    @Override
+    public Iterable<JSONObject> search( String query, int maxResults ) throws Exception {
+        return super.search( fold( query ), maxResults );
+    }
+
+}
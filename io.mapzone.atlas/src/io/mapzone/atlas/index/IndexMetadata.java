@@ -0,0 +1,248 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.Optional;
+import java.util.Properties;
+
+import java.time.Instant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Persistent information about the content of the {@link AtlasIndex}, stored in a
+ * properties file next to the index directory.
+ * <p/>
+ * Keeps a fingerprint of the data of every indexed layer, so that the
+ * {@link AtlasIndex.IndexerJob} can skip layers that did not change since the last
+ * run, and marks layers with reported but not yet applied modifications as
+ * {@link #isDirty(String) dirty}. Also keeps the generation of the serving index, and the time and outcome
+ * of the last run, so that a restart can serve the existing index right away.
+ * The file is written atomically; writing a new generation is the commit point of
+ * a side-by-side rebuild.
+ *
+ * @author Falko Bräutigam
+ */
+class IndexMetadata {
+
+    private static final Log log = LogFactory.getLog( IndexMetadata.class );
+
+    private File            f;
+
+    private Properties      props = new Properties();
+
+
+    public IndexMetadata( File f ) {
+        this.f = f;
+        if (f.exists()) {
+            try (InputStream in = new FileInputStream( f )) {
+                props.load( in );
+            }
+            catch (IOException e) {
+                // start over; worst case is a full re-index
+                log.warn( "Unable to read index metadata: " + f, e );
+                props.clear();
+            }
+        }
+    }
+
+
+    /**
+     * Checks the format of the documents of the index. If it differs from the
+     * given format then all fingerprints are removed, so that all layers are
+     * re-indexed.
+     *
+     * @return True if the format has changed.
+     */
+    public boolean checkDocumentFormat( int format ) {
+        String current = props.getProperty( "document.format" );
+        if (current != null && Integer.parseInt( current ) == format) {
+            return false;
+        }
+        log.info( "Document format changed: " + current + " -> " + format );
+        removeFingerprints();
+        props.setProperty( "document.format", String.valueOf( format ) );
+        return true;
+    }
+
+
+    /**
+     * The generation of the serving index; 0 if not yet rebuilt side by side.
+     */
+    public int indexGeneration() {
+        return Integer.parseInt( props.getProperty( "index.generation", "0" ) );
+    }
+
+
+    /**
+     * @return this
+     */
+    public IndexMetadata setIndexGeneration( int generation ) {
+        props.setProperty( "index.generation", String.valueOf( generation ) );
+        return this;
+    }
+
+
+    /**
+     * The time the last {@link AtlasIndex.IndexerJob} run completed successfully.
+     */
+    public Optional<Instant> buildTime() {
+        return Optional.ofNullable( props.getProperty( "index.buildTime" ) ).map( Instant::parse );
+    }
+
+
+    /**
+     * @return this
+     */
+    public IndexMetadata setBuildTime( Instant buildTime ) {
+        props.setProperty( "index.buildTime", buildTime.toString() );
+        return this;
+    }
+
+
+    /**
+     * True if the serving index reflects the data of all layers as of the
+     * {@link #buildTime()}; false if the last run failed or was interrupted.
+     */
+    public boolean isConsistent() {
+        return Boolean.parseBoolean( props.getProperty( "index.consistent", "false" ) );
+    }
+
+
+    /**
+     * @return this
+     */
+    public IndexMetadata setConsistent( boolean consistent ) {
+        props.setProperty( "index.consistent", String.valueOf( consistent ) );
+        return this;
+    }
+
+
+    /**
+     * The time the last full sweep, ignoring the fingerprints, completed
+     * successfully.
+     */
+    public Optional<Instant> sweepTime() {
+        return Optional.ofNullable( props.getProperty( "index.sweepTime" ) ).map( Instant::parse );
+    }
+
+
+    /**
+     * @return this
+     */
+    public IndexMetadata setSweepTime( Instant sweepTime ) {
+        props.setProperty( "index.sweepTime", sweepTime.toString() );
+        return this;
+    }
+
+
+    /**
+     * Forgets the fingerprints of all layers.
+     *
+     * @return this
+     */
+    public IndexMetadata removeFingerprints() {
+        props.stringPropertyNames().stream()
+                .filter( key -> key.startsWith( "layer." ) && key.endsWith( ".fingerprint" ) )
+                .forEach( key -> props.remove( key ) );
+        return this;
+    }
+
+
+    /**
+     * The fingerprint of the given layer as of the last successful indexing.
+     */
+    public Optional<String> fingerprint( String layerId ) {
+        return Optional.ofNullable( props.getProperty( "layer." + layerId + ".fingerprint" ) );
+    }
+
+
+    /**
+     * @return this
+     */
+    public IndexMetadata setFingerprint( String layerId, String fingerprint ) {
+        props.setProperty( "layer." + layerId + ".fingerprint", fingerprint );
+        return this;
+    }
+
+
+    /**
+     * Forgets the fingerprint of the given layer, so that it is re-indexed next time.
+     *
+     * @return this
+     */
+    public IndexMetadata removeFingerprint( String layerId ) {
+        props.remove( "layer." + layerId + ".fingerprint" );
+        return this;
+    }
+
+
+    /**
+     * True if modifications of features of the given layer were reported but
+     * possibly not yet applied to the index. The layer is re-indexed regardless of
+     * its fingerprint then, so that modifications pending at a crash or shutdown
+     * are not lost.
+     */
+    public boolean isDirty( String layerId ) {
+        return props.containsKey( "layer." + layerId + ".dirty" );
+    }
+
+
+    /**
+     * True if any layer is {@link #isDirty(String) dirty}.
+     */
+    public boolean hasDirty() {
+        return props.stringPropertyNames().stream()
+                .anyMatch( key -> key.startsWith( "layer." ) && key.endsWith( ".dirty" ) );
+    }
+
+
+    /**
+     * @return this
+     */
+    public IndexMetadata setDirty( String layerId, boolean dirty ) {
+        if (dirty) {
+            props.setProperty( "layer." + layerId + ".dirty", "true" );
+        }
+        else {
+            props.remove( "layer." + layerId + ".dirty" );
+        }
+        return this;
+    }
+
+
+    /**
+     * Atomically writes the metadata to the file.
+     */
+    public synchronized void store() throws IOException {
+        File tmp = new File( f.getParentFile(), f.getName() + ".tmp" );
+        try (OutputStream out = new FileOutputStream( tmp )) {
+            props.store( out, "Atlas index metadata" );
+        }
+        Files.move( tmp.toPath(), f.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+}
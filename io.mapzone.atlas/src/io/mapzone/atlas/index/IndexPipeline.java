@@ -0,0 +1,173 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.opengis.feature.Feature;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
+
+/**
+ * Transforms batches of features in parallel and hands the resulting documents to
+ * an {@link Updater}, and the rendered sheets to the {@link Updater} of the
+ * {@link SheetStore}.
+ * <p/>
+ * The features are read by the caller (see {@link LayerIndexer}) and
+ * {@link #submit(String, List, Set, SheetRenderer) submitted} to the shared
+ * worker pool of the {@link AtlasIndex}. The number of batches in flight is
+ * bounded; {@link #submit(String, List, Set, SheetRenderer)} blocks if the
+ * workers cannot keep up, so that a huge layer cannot flood the memory.
+ *
+ * @author Falko Bräutigam
+ */
+class IndexPipeline {
+
+    private static final Log log = LogFactory.getLog( IndexPipeline.class );
+
+    /** The number of features in one batch. */
+    public static final int     BATCH_SIZE = 250;
+
+    private AtlasIndex          atlasIndex;
+
+    private Updater             updater;
+
+    private Updater             sheetUpdater;
+
+    /** Collects the terms of the stored documents. */
+    private TermSuggester.Builder terms;
+
+    private ExecutorService     workers;
+
+    private int                 maxPending;
+
+    /** Permits for batches in flight. */
+    private Semaphore           pending;
+
+    /** Ids of the layers that had errors while transforming/storing. */
+    private Set<String>         failed = ConcurrentHashMap.newKeySet();
+
+    private AtomicInteger       count = new AtomicInteger();
+
+
+    /**
+     *
+     * @param sheetUpdater Stores the rendered sheets in the {@link SheetStore}.
+     * @param terms Collects the terms of the stored documents.
+     * @param workers The (shared) pool to do the work.
+     * @param maxPending The max number of batches in flight.
+     */
+    public IndexPipeline( AtlasIndex atlasIndex, Updater updater, Updater sheetUpdater, TermSuggester.Builder terms, 
+            ExecutorService workers, int maxPending ) {
+        this.atlasIndex = atlasIndex;
+        this.updater = updater;
+        this.sheetUpdater = sheetUpdater;
+        this.terms = terms;
+        this.workers = workers;
+        this.maxPending = maxPending;
+        this.pending = new Semaphore( maxPending );
+    }
+
+
+    /**
+     * Asynchronously transforms and stores the given features. Blocks if max
+     * number of batches are in flight.
+     *
+     * @param layerId The layer the features belong to.
+     * @param batch The features to index.
+     * @param attributes The attributes to index, or null for all.
+     * @param sheets Renders the sheets of the layer.
+     */
+    public void submit( String layerId, List<Feature> batch, Set<String> attributes, SheetRenderer sheets ) 
+            throws InterruptedException {
+        pending.acquire();
+        try {
+            workers.execute( () -> {
+                try {
+                    List<JSONObject> docs = new ArrayList( batch.size() );
+                    List<JSONObject> rendered = new ArrayList( batch.size() );
+                    for (Feature feature : batch) {
+                        docs.add( atlasIndex.transform( layerId, feature, attributes ) );
+                        sheets.render( feature ).ifPresent( rendered::add );
+                    }
+                    for (JSONObject doc : docs) {
+                        updater.store( doc, true );
+                        terms.add( doc );
+                    }
+                    for (JSONObject doc : rendered) {
+                        sheetUpdater.store( doc, true );
+                    }
+                    count.addAndGet( docs.size() );
+                }
+                catch (Throwable e) {
+                    log.warn( "Layer: " + layerId, e );
+                    failed.add( layerId );
+                }
+                finally {
+                    pending.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            pending.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Waits until all submitted batches are done.
+     */
+    public void await() throws InterruptedException {
+        pending.acquire( maxPending );
+        pending.release( maxPending );
+    }
+
+
+    /**
+     * Marks the given layer as failed, if reading its features failed.
+     */
+    public void failed( String layerId ) {
+        failed.add( layerId );
+    }
+
+
+    /**
+     * True if transforming/storing features of the given layer failed.
+     */
+    public boolean isFailed( String layerId ) {
+        return failed.contains( layerId );
+    }
+
+
+    /**
+     * The number of documents stored so far.
+     */
+    public int count() {
+        return count.get();
+    }
+
+}
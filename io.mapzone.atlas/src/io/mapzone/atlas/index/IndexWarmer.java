@@ -0,0 +1,129 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.json.JSONObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+
+import org.polymap.model2.test.Timer;
+
+/**
+ * Pre-warms the page cache of the OS with the files of the index after startup,
+ * so that the first search does not have to wait for the disk.
+ * <p/>
+ * The {@link org.polymap.rhei.fulltext.store.lucene.LuceneFulltextIndex} does
+ * not allow to choose its Lucene Directory, so how the index is held in memory
+ * is up to its Directory. This just reads every file once, which pulls it into
+ * the page cache, where the Directory finds it; nothing is kept in the Java heap
+ * or mapped. A first search then opens the searcher.
+ *
+ * @see AtlasIndex#PREWARM
+ * @author Falko Bräutigam
+ */
+class IndexWarmer
+        extends Job {
+
+    private static final Log log = LogFactory.getLog( IndexWarmer.class );
+
+    /** The size of the read buffer. */
+    private static final int        BUFFER_SIZE = 1024 * 1024;
+
+
+    // instance *******************************************
+
+    private File            indexDir;
+
+    private FulltextIndex   index;
+
+
+    public IndexWarmer( File indexDir, FulltextIndex index ) {
+        super( "Atlas Index Warmer" );
+        this.indexDir = indexDir;
+        this.index = index;
+        setSystem( true );
+        setPriority( Job.DECORATE );
+    }
+
+
+    @Override
+    protected IStatus run( IProgressMonitor monitor ) {
+        Timer timer = Timer.startNow();
+        long size = 0, loaded = 0;
+        ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE );
+        File[] files = indexDir.listFiles();
+        for (File f : files != null ? files : new File[0]) {
+            if (monitor.isCanceled()) {
+                return Status.CANCEL_STATUS;
+            }
+            try {
+                if (f.isFile()) {
+                    size += f.length();
+                    loaded += preload( f, buffer );
+                }
+            }
+            catch (IOException e) {
+                // files may be merged away meanwhile
+                log.debug( "Preload: " + f.getName() + ": " + e.getLocalizedMessage() );
+            }
+        }
+        try {
+            // opens the searcher
+            for (JSONObject json : index.search( "atlas", 1 )) {
+                log.debug( "Warm up: " + json.optString( FulltextIndex.FIELD_ID ) );
+            }
+        }
+        catch (Exception e) {
+            log.warn( "Warm up search failed: " + e.getLocalizedMessage() );
+        }
+        log.info( "Index size: " + byteCountToDisplaySize( size ) + ", prewarmed: " 
+                + byteCountToDisplaySize( loaded ) + " (" + timer.elapsedTime() + "ms)" );
+        return Status.OK_STATUS;
+    }
+
+
+    /**
+     * Reads the given file, which pulls it into the page cache of the OS.
+     *
+     * @return The number of bytes read.
+     */
+    protected long preload( File f, ByteBuffer buffer ) throws IOException {
+        long result = 0;
+        try (FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ )) {
+            for (int c = channel.read( buffer ); c != -1; c = channel.read( buffer )) {
+                result += c;
+                buffer.clear();
+            }
+            return result;
+        }
+    }
+
+}
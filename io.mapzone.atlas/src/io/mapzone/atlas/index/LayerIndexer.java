@@ -14,69 +14,155 @@
  */
 package io.mapzone.atlas.index;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+
+import java.io.IOException;
 
 import org.geotools.data.FeatureSource;
-import org.geotools.feature.FeatureCollection;
+import org.geotools.data.Query;
 import org.geotools.feature.FeatureIterator;
-import org.json.JSONObject;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.Feature;
+import org.opengis.feature.type.PropertyDescriptor;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.polymap.core.project.ILayer;
-import org.polymap.core.runtime.UIJob;
-
-import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
 
 import org.polymap.p4.layer.FeatureLayer;
 
+import io.mapzone.atlas.sheet.MarkdownScriptSheet;
+import io.mapzone.atlas.sheet.MarkdownScriptSheet.LayerSheet;
+
 /**
- * 
+ * Reads the features of one {@link ILayer} and submits them in batches to an
+ * {@link IndexPipeline}. 
+ * <p/>
+ * Reading is done in the calling thread, which is expected to have the proper
+ * session context. The {@link AtlasIndex.IndexerJob} runs several LayerIndexers
+ * concurrently, each in a reader thread of its own.
  *
  * @author Falko Bräutigam
  */
-class LayerIndexer
-        extends UIJob {
+class LayerIndexer {
 
     private static final Log log = LogFactory.getLog( LayerIndexer.class );
 
+    /**
+     * The attributes of the given layer that are referenced by its
+     * {@link LayerSheet#TITLE} or {@link LayerSheet#DESCRIPTION} sheet. Just these
+     * are indexed; other attributes are not shown in the search results and would
+     * just bloat the index.
+     *
+     * @return The names of the attributes, or {@link Optional#empty()} if the
+     *         layer has no such sheets, in which case all attributes are indexed.
+     */
+    public static Optional<Set<String>> indexedAttributes( ILayer layer, FeatureSource fs ) throws IOException {
+        Set<String> referenced = new HashSet();
+        boolean hasSheets = false;
+        for (LayerSheet sheet : new LayerSheet[] {LayerSheet.TITLE, LayerSheet.DESCRIPTION}) {
+            MarkdownScriptSheet markdown = MarkdownScriptSheet.of( layer, sheet );
+            if (markdown.text().isPresent()) {
+                hasSheets = true;
+                referenced.addAll( markdown.referencedVariables() );
+            }
+        }
+        if (!hasSheets) {
+            return Optional.empty();
+        }
+        Set<String> result = new HashSet();
+        for (PropertyDescriptor prop : fs.getSchema().getDescriptors()) {
+            String name = prop.getName().getLocalPart();
+            if (referenced.contains( MarkdownScriptSheet.normalizeVariable( name ) )) {
+                result.add( name );
+            }
+        }
+        return Optional.of( result );
+    }
+
+
+    /**
+     * Computes a cheap fingerprint of the data of the given {@link FeatureSource}:
+     * the schema, the number of features and the bounds. Changes of attribute
+     * values that do not change count or bounds are not reflected; these are
+     * caught by the periodic full sweep of the {@link AtlasIndex}. The
+     * fingerprint with layer also reflects the sheets, which decide about the
+     * {@link #indexedAttributes(ILayer, FeatureSource) indexed attributes} and
+     * are {@link SheetRenderer rendered} into the index.
+     */
+    public static String fingerprint( ILayer layer, FeatureSource fs ) throws IOException {
+        return fingerprint( fs ) + ":" + SheetRenderer.sheetsHash( layer );
+    }
+
+
+    public static String fingerprint( FeatureSource fs ) throws IOException {
+        int count = fs.getCount( Query.ALL );
+        if (count < 0) {
+            count = fs.getFeatures().size();
+        }
+        ReferencedEnvelope bounds = fs.getBounds();
+        return new StringBuilder( 128 )
+                .append( Integer.toHexString( fs.getSchema().toString().hashCode() ) ).append( ':' )
+                .append( count ).append( ':' )
+                .append( bounds != null ? bounds.getMinX() + "," + bounds.getMinY() + "," + bounds.getMaxX() + "," + bounds.getMaxY() : "-" )
+                .toString();
+    }
+
+
     private ILayer              layer;
     
-    private Updater             updater;
-
-    private AtlasIndex          atlasIndex;
+    private IndexPipeline       pipeline;
     
     
-    public LayerIndexer( ILayer layer, Updater updater, AtlasIndex atlasIndex ) {
-        super( LayerIndexer.class.getSimpleName() + ": " + layer.label.get() );
-        this.updater = updater;
+    public LayerIndexer( ILayer layer, IndexPipeline pipeline ) {
         this.layer = layer;
-        this.atlasIndex = atlasIndex;
+        this.pipeline = pipeline;
     }
 
 
-    @Override
-    protected void runWithException( IProgressMonitor monitor ) throws Exception {
+    public ILayer layer() {
+        return layer;
+    }
+
+
+    /**
+     * Reads all features of the layer and submits them to the {@link #pipeline}.
+     * Blocks if the pipeline is saturated.
+     *
+     * @return The number of features read.
+     */
+    public int run( IProgressMonitor monitor ) throws Exception {
+        int count = 0;
         Optional<FeatureLayer> fl = FeatureLayer.of( layer ).get();
         if (fl.isPresent()) {
             FeatureSource fs = fl.get().featureSource();
-            FeatureCollection features = fs.getFeatures();
-            monitor.beginTask( layer.label.get(), IProgressMonitor.UNKNOWN /*features.size()*/ );
+            Set<String> attributes = indexedAttributes( layer, fs ).orElse( null );
+            SheetRenderer sheets = new SheetRenderer( layer );
+            monitor.subTask( layer.label.get() );
             try (
-                FeatureIterator it = features.features();
+                FeatureIterator it = fs.getFeatures().features();
             ){
-                int count = 0;
-                for (;it.hasNext(); count++) {
-                    JSONObject json = atlasIndex.transform( it.next() );
-                    updater.store( json, true );
-                    monitor.worked( 1 );
+                List<Feature> batch = new ArrayList( IndexPipeline.BATCH_SIZE );
+                for (;it.hasNext() && !monitor.isCanceled(); count++) {
+                    batch.add( it.next() );
+                    if (batch.size() == IndexPipeline.BATCH_SIZE) {
+                        pipeline.submit( layer.id(), batch, attributes, sheets );
+                        batch = new ArrayList( IndexPipeline.BATCH_SIZE );
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    pipeline.submit( layer.id(), batch, attributes, sheets );
                 }
-                log.info( "indexed: " + count );
             }
-            monitor.done();
+            log.info( layer.label.get() + ": read " + count );
         }
+        return count;
     }
     
 }
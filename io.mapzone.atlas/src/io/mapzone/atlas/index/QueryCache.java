@@ -0,0 +1,114 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.time.Duration;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * The {@link SearchResult}s of {@link AtlasIndex}, bounded by their
+ * {@link SearchResult#memSize() memory size}.
+ * <p/>
+ * Loading is single-flight: concurrent misses for the same query wait for the
+ * one search that is in flight instead of each running its own search. Keys are
+ * prefixed with the {@link #generation()}, so that a search started before an
+ * {@link #invalidate()} never satisfies a request after it.
+ *
+ * @author Falko Bräutigam
+ */
+class QueryCache {
+
+    /** The max approximate memory size of all cached {@link SearchResult}s. */
+    public static final long        MAX_WEIGHT = Long.getLong( "io.mapzone.atlas.cache.maxWeight", 64 * 1024 * 1024 );
+
+    /** Cached {@link SearchResult}s expire this time after they were created. */
+    public static final Duration    TTL = Duration.ofMinutes( Long.getLong( "io.mapzone.atlas.cache.ttlMinutes", 60 ) );
+
+    /** Cached {@link SearchResult}s expire this time after they were last accessed. */
+    public static final Duration    IDLE = Duration.ofMinutes( Long.getLong( "io.mapzone.atlas.cache.idleMinutes", 10 ) );
+
+    private Cache<String,SearchResult>  cache = CacheBuilder.newBuilder()
+            .maximumWeight( MAX_WEIGHT )
+            .weigher( (String key, SearchResult value) -> (key.length() * 2) + value.memSize() )
+            .expireAfterWrite( TTL.toMillis(), TimeUnit.MILLISECONDS )
+            .expireAfterAccess( IDLE.toMillis(), TimeUnit.MILLISECONDS )
+            .recordStats()
+            .build();
+
+    private AtomicLong                  generation = new AtomicLong();
+
+
+    /**
+     * Returns the cached result of the given query, or calls the loader. Just one
+     * loader per query runs at a time; concurrent callers wait for its result.
+     *
+     * @param query The canonical query.
+     * @param loader Searches the index.
+     * @throws ExecutionException If the loader failed. All callers waiting for
+     *         the failed search get the exception; the failure is not cached.
+     */
+    public SearchResult get( String query, Callable<SearchResult> loader ) throws ExecutionException {
+        try {
+            return cache.get( generation.get() + ":" + query, loader );
+        }
+        catch (UncheckedExecutionException e) {
+            throw new ExecutionException( e.getCause() );
+        }
+    }
+
+
+    /**
+     * Discards the cached result of the given query.
+     */
+    public void invalidate( String query ) {
+        cache.invalidate( generation.get() + ":" + query );
+    }
+
+
+    /**
+     * Increments the {@link #generation()} and discards all cached results.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+
+    /**
+     * Incremented by every {@link #invalidate()}.
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+
+    /**
+     * Hit, miss, eviction and load statistics. The load count is the number of
+     * searches actually run.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+}
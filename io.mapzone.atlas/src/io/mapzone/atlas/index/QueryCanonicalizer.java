@@ -0,0 +1,78 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.TreeSet;
+
+/**
+ * Brings a query string into a canonical form, so that equivalent queries like
+ * "Greifswald", " greifswald " and "GREIFSWALD" share one entry of the query
+ * cache of {@link AtlasIndex}.
+ * <p/>
+ * A simple query (just terms) is split by {@link AtlasTokenizer#tokenize}, lower-cased
+ * (like {@link org.polymap.rhei.fulltext.indexing.LowerCaseTokenFilter} does),
+ * {@link GermanTokenFilter#fold(String) folded}, sorted and deduplicated; stop
+ * words are removed. The order of the terms does not change the result of such
+ * a query. Queries using Lucene syntax (operators, phrases, wildcards, fields,
+ * ...) are just trimmed and folded as their semantics depends on order and case.
+ *
+ * @author Falko Bräutigam
+ */
+class QueryCanonicalizer {
+
+    /** Chars that have a special meaning in the Lucene query syntax. */
+    private static final String     SYNTAX_CHARS = "+-!(){}[]^\"~*?:\\/&|";
+
+    private AtlasTokenizer          tokenizer = new AtlasTokenizer();
+
+
+    /**
+     * Returns the canonical form of the given query.
+     */
+    public String canonical( String query ) {
+        String trimmed = query.trim();
+        if (!isSimple( trimmed )) {
+            return GermanTokenFilter.fold( trimmed );
+        }
+        TreeSet<String> terms = new TreeSet();
+        tokenizer.tokenize( trimmed, token -> terms.add( GermanTokenFilter.fold( token.toLowerCase() ) ) );
+        if (GermanTokenFilter.REMOVE_STOP_WORDS) {
+            TreeSet<String> withoutStopWords = new TreeSet( terms );
+            withoutStopWords.removeAll( GermanTokenFilter.STOP_WORDS );
+            // a query of just stop words is searched as is
+            return String.join( " ", withoutStopWords.isEmpty() ? terms : withoutStopWords );
+        }
+        return String.join( " ", terms );
+    }
+
+
+    /**
+     * True if the given query consists of plain terms only.
+     */
+    protected boolean isSimple( String query ) {
+        for (int i=0; i<query.length(); i++) {
+            if (SYNTAX_CHARS.indexOf( query.charAt( i ) ) > -1) {
+                return false;
+            }
+        }
+        for (String word : query.split( "\\s+" )) {
+            if (word.equals( "AND" ) || word.equals( "OR" ) || word.equals( "NOT" )) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
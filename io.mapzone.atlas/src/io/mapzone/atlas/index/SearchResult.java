@@ -0,0 +1,119 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The cached result of a query of the {@link AtlasIndex}: the ids of the matching
+ * features partitioned by {@link AtlasDocumentTransformer#FIELD_LAYER layer}, so
+ * that the filter of each layer contains just its own ids.
+ *
+ * @author Falko Bräutigam
+ */
+class SearchResult {
+
+    public static final SearchResult    EMPTY = new SearchResult( Collections.EMPTY_MAP );
+
+    /**
+     * Collects ids and finally creates a {@link SearchResult}.
+     */
+    public static class Builder {
+
+        private Map<String,FeatureIdSet.Builder> partitions = new HashMap();
+
+        public Builder add( String layerId, String id ) {
+            return add( layerId, id, null );
+        }
+
+        /**
+         * @param bounds The bounds of the feature, or null if unknown.
+         * @see FeatureIdSet.Builder#add(String, float[])
+         */
+        public Builder add( String layerId, String id, float[] bounds ) {
+            partitions.computeIfAbsent( layerId, key -> new FeatureIdSet.Builder() ).add( id, bounds );
+            return this;
+        }
+
+        public SearchResult build() {
+            Map<String,FeatureIdSet> result = new HashMap( partitions.size() * 2 );
+            partitions.forEach( (layerId, builder) -> result.put( layerId, builder.build() ) );
+            return new SearchResult( result );
+        }
+    }
+
+
+    // instance *******************************************
+
+    private Map<String,FeatureIdSet>    partitions;
+    
+    private int                         memSize;
+    
+    private boolean                     complete = true;
+
+
+    protected SearchResult( Map<String,FeatureIdSet> partitions ) {
+        this.partitions = partitions;
+        this.memSize = partitions.values().stream().mapToInt( ids -> 64 + ids.memSize() ).sum();
+    }
+
+
+    /**
+     * A copy of this result that is marked as not {@link #isComplete() complete}.
+     */
+    public SearchResult incomplete() {
+        SearchResult result = new SearchResult( partitions );
+        result.complete = false;
+        return result;
+    }
+
+
+    /**
+     * False if the search was stopped before it was done, so that the result
+     * may lack ids and must not be cached.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+
+    /**
+     * The ids of the features of the given layer.
+     *
+     * @return The ids, or {@link FeatureIdSet#EMPTY}.
+     */
+    public FeatureIdSet ids( String layerId ) {
+        return partitions.getOrDefault( layerId, FeatureIdSet.EMPTY );
+    }
+
+
+    /**
+     * The number of ids of all layers.
+     */
+    public int size() {
+        return partitions.values().stream().mapToInt( ids -> ids.size() ).sum();
+    }
+
+
+    /**
+     * The approximate size of this result in memory.
+     */
+    public int memSize() {
+        return memSize;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * The {@link FeatureIdSet}s of one layer, restricted to an extent, shared by all
+ * sessions. Keyed by canonical query, layer, {@link #quantize(Envelope)
+ * quantized} extent and the generation of the {@link QueryCache}, so that
+ * visitors searching the same text in (about) the same map view share one
+ * immutable result, including its {@link FeatureIdSet#toFilter() filter}.
+ * <p/>
+ * The result for a quantized extent contains the ids of a slightly bigger area
+ * than the requested one. This is fine as the ids are just a pre-filter; the
+ * caller applies the exact extent filter anyway.
+ *
+ * @author Falko Bräutigam
+ */
+class SharedResultCache {
+
+    /** The max approximate memory size of all cached {@link FeatureIdSet}s. */
+    public static final long        MAX_WEIGHT = Long.getLong( "io.mapzone.atlas.sharedCache.maxWeight", 32 * 1024 * 1024 );
+
+    /**
+     * The number of grid cells along the bigger side of an extent; bigger values
+     * give smaller results but fewer hits.
+     */
+    public static final int         GRID_CELLS = 8;
+
+    /**
+     * Snaps the given extent outwards to a grid. The cell size is a power of 2
+     * depending on the size of the extent, so that extents of about the same zoom
+     * level share their grid.
+     *
+     * @return Newly created envelope that contains the given extent.
+     */
+    public static Envelope quantize( Envelope extent ) {
+        double size = Math.max( extent.getWidth(), extent.getHeight() );
+        if (extent.isNull() || size <= 0 || Double.isInfinite( size ) || Double.isNaN( size )) {
+            return new Envelope( extent );
+        }
+        double cell = Math.pow( 2, Math.ceil( Math.log( size / GRID_CELLS ) / Math.log( 2 ) ) );
+        return new Envelope(
+                Math.floor( extent.getMinX() / cell ) * cell, Math.ceil( extent.getMaxX() / cell ) * cell,
+                Math.floor( extent.getMinY() / cell ) * cell, Math.ceil( extent.getMaxY() / cell ) * cell );
+    }
+
+
+    // instance *******************************************
+
+    private Cache<String,FeatureIdSet>  cache = CacheBuilder.newBuilder()
+            .maximumWeight( MAX_WEIGHT )
+            .weigher( (String key, FeatureIdSet value) -> (key.length() * 2) + value.memSize() )
+            .expireAfterAccess( QueryCache.IDLE.toMillis(), TimeUnit.MILLISECONDS )
+            .recordStats()
+            .build();
+
+
+    /**
+     * Returns the cached ids, or calls the loader.
+     *
+     * @param generation The {@link QueryCache#generation()} the loader uses.
+     * @param query The canonical query.
+     * @param layerId The id of the layer.
+     * @param quantized The {@link #quantize(Envelope) quantized} extent, or null.
+     * @param loader Creates the ids of the given quantized extent.
+     * @throws ExecutionException If the loader failed.
+     */
+    public FeatureIdSet get( long generation, String query, String layerId, Envelope quantized,
+            Callable<FeatureIdSet> loader ) throws ExecutionException {
+        String key = new StringBuilder( 128 ).append( generation ).append( ':' ).append( layerId )
+                .append( ':' ).append( quantized != null
+                        ? quantized.getMinX() + "," + quantized.getMinY() + "," + quantized.getMaxX() + "," + quantized.getMaxY()
+                        : "*" )
+                .append( ':' ).append( query ).toString();
+        try {
+            return cache.get( key, loader );
+        }
+        catch (UncheckedExecutionException e) {
+            throw new ExecutionException( e.getCause() );
+        }
+    }
+
+
+    /**
+     * Discards all cached results. Called when the {@link QueryCache} is
+     * invalidated; results of an old generation are never returned anyway.
+     */
+    public void invalidate() {
+        cache.invalidateAll();
+    }
+
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+}
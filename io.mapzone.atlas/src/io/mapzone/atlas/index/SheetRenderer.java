@@ -0,0 +1,152 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+import org.opengis.feature.Feature;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+import org.polymap.core.project.ILayer;
+
+import io.mapzone.atlas.sheet.MarkdownScriptSheet;
+import io.mapzone.atlas.sheet.MarkdownScriptSheet.LayerSheet;
+
+/**
+ * Renders the {@link LayerSheet#TITLE} and {@link LayerSheet#DESCRIPTION} sheets
+ * of a layer at index time, so that the search result list does not have to run
+ * the scripts for every row. The sheets are read once per layer; their scripts
+ * are {@link MarkdownScriptSheet#compile() compiled} once per worker thread.
+ * {@link LayerSheet#DETAIL} is still rendered on demand.
+ * <p/>
+ * The texts are kept in the {@link SheetStore} of the index generation, not in
+ * the documents of the index, so that the words of a sheet do not end up as
+ * terms of the index; otherwise the literal text of a sheet would match every
+ * feature of the layer.
+ *
+ * @see AtlasIndex#renderedSheet(ILayer, String, LayerSheet)
+ * @author Falko Bräutigam
+ */
+class SheetRenderer {
+
+    private static final Log log = LogFactory.getLog( SheetRenderer.class );
+
+    /** The sheets that are rendered at index time. */
+    public static final LayerSheet[]    RENDERED = {LayerSheet.TITLE, LayerSheet.DESCRIPTION};
+
+    /**
+     * The field of the {@link SheetStore} document that contains the rendered
+     * text of the given sheet.
+     */
+    public static String fieldOf( LayerSheet sheet ) {
+        return "_" + sheet.toString().toLowerCase() + "_";
+    }
+
+    /** The fields of the {@link #RENDERED} sheets. */
+    public static final String[]        FIELDS = Arrays.stream( RENDERED ).map( sheet -> fieldOf( sheet ) ).toArray( String[]::new );
+
+    /**
+     * The texts of the {@link #RENDERED} sheets of the given {@link SheetStore}
+     * document.
+     *
+     * @return The texts; elements are null if the sheet was not rendered.
+     */
+    public static String[] texts( JSONObject doc ) {
+        String[] result = new String[RENDERED.length];
+        for (int i=0; i<RENDERED.length; i++) {
+            result[i] = doc.optString( FIELDS[i], null );
+        }
+        return result;
+    }
+
+
+    /**
+     * Computes a hash of the source of the {@link #RENDERED} sheets of the given
+     * layer.
+     */
+    public static String sheetsHash( ILayer layer ) throws IOException {
+        StringBuilder buf = new StringBuilder( 1024 );
+        for (LayerSheet sheet : RENDERED) {
+            buf.append( MarkdownScriptSheet.of( layer, sheet ).text().orElse( "" ) ).append( '\0' );
+        }
+        return Integer.toHexString( buf.toString().hashCode() );
+    }
+
+
+    // instance *******************************************
+
+    private ILayer          layer;
+
+    /** The markdown of the {@link #RENDERED} sheets; null if not defined. */
+    private String[]        markdown = new String[RENDERED.length];
+
+    /** The compiled {@link #RENDERED} sheets of the calling worker thread; null if not defined. */
+    private ThreadLocal<MarkdownScriptSheet[]> compiled = ThreadLocal.withInitial( () -> {
+        MarkdownScriptSheet[] result = new MarkdownScriptSheet[RENDERED.length];
+        for (int i=0; i<RENDERED.length; i++) {
+            result[i] = markdown[i] != null ? new MarkdownScriptSheet( markdown[i] ).compile() : null;
+        }
+        return result;
+    });
+
+
+    public SheetRenderer( ILayer layer ) throws IOException {
+        this.layer = layer;
+        for (int i=0; i<RENDERED.length; i++) {
+            markdown[i] = MarkdownScriptSheet.of( layer, RENDERED[i] ).text().orElse( null );
+        }
+    }
+
+
+    /**
+     * Renders the sheets for the given feature. A sheet that fails for this
+     * feature is left out; it is rendered on demand then.
+     *
+     * @return The {@link SheetStore#document(String, String, String[]) document}
+     *         of the {@link SheetStore}, or {@link Optional#empty()} if no sheet
+     *         was rendered.
+     */
+    public Optional<JSONObject> render( Feature feature ) {
+        MarkdownScriptSheet[] sheets = compiled.get();
+        String[] texts = new String[RENDERED.length];
+        boolean rendered = false;
+        for (int i=0; i<RENDERED.length; i++) {
+            if (sheets[i] != null) {
+                try {
+                    String text = sheets[i]
+                            .setStandardVariables( layer, feature )
+                            .build( new NullProgressMonitor() );
+                    texts[i] = text;
+                    rendered = true;
+                }
+                catch (Exception e) {
+                    log.debug( "Sheet " + RENDERED[i] + ": " + feature.getIdentifier() + ": " + e.getLocalizedMessage() );
+                }
+            }
+        }
+        return rendered 
+                ? Optional.of( SheetStore.document( layer.id(), feature.getIdentifier().getID(), texts ) )
+                : Optional.empty();
+    }
+
+}
@@ -0,0 +1,123 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.Iterables;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+import org.polymap.rhei.fulltext.store.lucene.LuceneFulltextIndex;
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
+
+/**
+ * The texts of the sheets {@link SheetRenderer rendered} at index time, kept out
+ * of the documents of the {@link AtlasIndex}. There is one store per index
+ * generation, next to the index directory like the {@link TermSuggester} file;
+ * it is written and switched together with its index.
+ * <p/>
+ * The store is a Lucene index of its own. Its documents have the
+ * {@link AtlasDocumentTransformer#scope(JSONObject, String) scope} fields of the
+ * feature and the {@link SheetRenderer#FIELDS texts}. It is searched just by the
+ * key and layer tokens, so the words of the texts neither match queries nor show
+ * up as proposals of the serving index, and the texts are stored as they are.
+ *
+ * @author Falko Bräutigam
+ */
+class SheetStore {
+
+    /**
+     * Creates the document of the given feature with the given texts.
+     *
+     * @param texts The texts of the {@link SheetRenderer#RENDERED} sheets;
+     *        elements may be null.
+     */
+    public static JSONObject document( String layerId, String fid, String[] texts ) {
+        JSONObject doc = new JSONObject();
+        doc.put( FulltextIndex.FIELD_ID, fid );
+        for (int i=0; i<texts.length; i++) {
+            if (texts[i] != null) {
+                doc.put( SheetRenderer.FIELDS[i], texts[i] );
+            }
+        }
+        return AtlasDocumentTransformer.scope( doc, layerId );
+    }
+
+
+    // instance *******************************************
+
+    private LuceneFulltextIndex     index;
+
+
+    public SheetStore( LuceneFulltextIndex index ) {
+        this.index = index;
+    }
+
+
+    public Updater prepareUpdate() {
+        return index.prepareUpdate();
+    }
+
+
+    public void close() {
+        index.close();
+    }
+
+
+    /**
+     * The texts of the given features, looked up by their
+     * {@link AtlasDocumentTransformer#FIELD_KEY key}, in chunks of some hundred
+     * features per search.
+     *
+     * @return Feature id -> {@link SheetRenderer#texts(JSONObject) texts}.
+     *         Features without rendered sheets are missing.
+     */
+    public Map<String,String[]> texts( String layerId, Collection<String> fids ) throws Exception {
+        Map<String,String[]> result = new HashMap( fids.size() * 2 );
+        // stay below the max number of clauses of a Lucene query
+        for (List<String> chunk : Iterables.partition( fids, 256 )) {
+            Set<String> tokens = new HashSet();
+            for (String fid : chunk) {
+                tokens.add( AtlasDocumentTransformer.token( AtlasDocumentTransformer.documentId( layerId, fid ) ) );
+            }
+            for (JSONObject doc : index.search( String.join( " OR ", tokens ), -1 )) {
+                if (tokens.contains( doc.optString( AtlasDocumentTransformer.FIELD_KEY ) )) {
+                    String fid = AtlasDocumentTransformer.fidOf( layerId, doc.getString( FulltextIndex.FIELD_ID ) );
+                    result.put( fid, SheetRenderer.texts( doc ) );
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * The documents of the given layer.
+     */
+    public Iterable<JSONObject> layerDocuments( String layerId ) throws Exception {
+        String token = AtlasDocumentTransformer.token( layerId );
+        return FluentIterable.from( index.search( token, -1 ) )
+                .filter( doc -> token.equals( doc.optString( AtlasDocumentTransformer.FIELD_LAYER ) ) );
+    }
+
+}
@@ -0,0 +1,50 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import java.util.function.Supplier;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+import org.polymap.rhei.fulltext.QueryDecorator;
+
+/**
+ * Answers proposals from the {@link TermSuggester} of the {@link AtlasIndex}
+ * instead of enumerating the terms of the index. Falls back to the index as long
+ * as the suggester is not yet built, and for proposals of a specific field.
+ *
+ * @author Falko Bräutigam
+ */
+class SuggestProposalDecorator
+        extends QueryDecorator {
+
+    private Supplier<TermSuggester>     suggester;
+
+
+    public SuggestProposalDecorator( FulltextIndex next, Supplier<TermSuggester> suggester ) {
+        super( next );
+        this.suggester = suggester;
+    }
+
+
+    @Override
+    public Iterable<String> propose( String term, int maxResults, String field ) throws Exception {
+        TermSuggester current = suggester.get();
+        if (field == null && current.size() > 0) {
+            return current.propose( term, maxResults );
+        }
+        return super.propose( term, maxResults, field );
+    }
+
+}
@@ -0,0 +1,503 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.index;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+/**
+ * Proposes terms of the {@link AtlasIndex} for a given prefix, ordered by their
+ * frequency. The terms are collected while indexing, so that proposals do not
+ * need to enumerate the term dictionary of the index.
+ * <p/>
+ * The terms are kept sorted, together with their frequencies, in two arrays. The
+ * proposals of the short prefixes, and of all prefixes that match more than
+ * {@link #MAX_SCAN} terms, are computed in advance; the range of any other prefix
+ * is found by binary search and is small.
+ * <p/>
+ * Instances are immutable. {@link #merge(Builder)} creates a new one with new
+ * arrays. {@link #update(Builder)}, used for incremental updates, just adds the
+ * changed frequencies to a small delta on top of the arrays, which is merged
+ * into the arrays once it grows too big. Proposals of prefixes that are computed
+ * in advance do not see terms that moved up by the delta into their top list
+ * until then.
+ * <p/>
+ * The terms are lower case and {@link GermanTokenFilter#fold(String) folded}
+ * like the terms of the index. Proposals are shown in the original spelling
+ * ("straße" instead of "strasse"); the {@link #spellings} of the folded terms
+ * are kept aside.
+ *
+ * @author Falko Bräutigam
+ */
+class TermSuggester {
+
+    public static final TermSuggester   EMPTY = new TermSuggester( new String[0], new int[0], Collections.EMPTY_MAP );
+
+    /** The max number of proposals. */
+    public static final int         MAX_PROPOSALS = 10;
+
+    /** Proposals of prefixes up to this length are computed in advance. */
+    public static final int         PRECOMPUTED_PREFIX = 2;
+
+    /**
+     * Proposals of prefixes that match more terms are computed in advance, so
+     * that no proposal scans more terms.
+     */
+    public static final int         MAX_SCAN = 256;
+
+    /** The min max size of the delta of {@link #update(Builder)}. */
+    public static final int         MAX_DELTA = 1000;
+
+    /**
+     * Collects the terms of index documents. Thread-safe, so that all workers of
+     * an {@link IndexPipeline} can share one instance.
+     */
+    public static class Builder {
+
+        private static final AtlasTokenizer tokenizer = new AtlasTokenizer();
+
+        private ConcurrentMap<String,Integer>   terms = new ConcurrentHashMap( 4096 );
+
+        /** Folded term -> lower case original spelling, if they differ. */
+        private ConcurrentMap<String,String>    spellings = new ConcurrentHashMap();
+
+        /**
+         * Adds the terms of all fields of the given document, except the id and
+         * other internal fields.
+         */
+        public Builder add( JSONObject doc ) {
+            return addDocument( doc, 1 );
+        }
+
+        /**
+         * Subtracts the terms of the given document, which is removed from or
+         * replaced in the index.
+         */
+        public Builder remove( JSONObject doc ) {
+            return addDocument( doc, -1 );
+        }
+
+        protected Builder addDocument( JSONObject doc, int count ) {
+            for (String key : doc.keySet()) {
+                if (!key.startsWith( "_" )) {
+                    addText( doc.optString( key, "" ), count );
+                }
+            }
+            return this;
+        }
+
+        public Builder addText( String text ) {
+            return addText( text, 1 );
+        }
+
+        protected Builder addText( String text, int count ) {
+            tokenizer.tokenize( text, token -> {
+                if (token.length() > 1) {
+                    String term = token.toLowerCase();
+                    String folded = GermanTokenFilter.fold( term );
+                    terms.merge( folded, count, Integer::sum );
+                    if (!folded.equals( term )) {
+                        spellings.putIfAbsent( folded, term );
+                    }
+                }
+            });
+            return this;
+        }
+
+        public TermSuggester build() {
+            return EMPTY.merge( this );
+        }
+    }
+
+
+    /**
+     * Reads a suggester that was {@link #store(File) stored} before.
+     */
+    public static TermSuggester load( File f ) throws IOException {
+        try (
+            BufferedReader in = new BufferedReader( new InputStreamReader( new GZIPInputStream( new FileInputStream( f ) ), UTF_8 ) );
+        ){
+            int size = Integer.parseInt( in.readLine() );
+            String[] terms = new String[size];
+            int[] freqs = new int[size];
+            Map<String,String> spellings = new HashMap();
+            for (int i=0; i<size; i++) {
+                // term, freq [, spelling]
+                String[] columns = in.readLine().split( "\t" );
+                terms[i] = columns[0];
+                freqs[i] = Integer.parseInt( columns[1] );
+                if (columns.length > 2) {
+                    spellings.put( columns[0], columns[2] );
+                }
+            }
+            return new TermSuggester( terms, freqs, spellings );
+        }
+    }
+
+
+    // instance *******************************************
+
+    /** Sorted. */
+    private String[]                terms;
+
+    private int[]                   freqs;
+
+    /** Prefix -> proposals. */
+    private Map<String,List<String>> precomputed = new HashMap();
+
+    /**
+     * Term -> frequency change of {@link #update(Builder) incremental updates}
+     * not yet merged into the arrays.
+     */
+    private Map<String,Integer>     delta = Collections.EMPTY_MAP;
+
+    /** Folded term -> original spelling, for the terms that differ. */
+    private Map<String,String>      spellings;
+
+
+    protected TermSuggester( String[] terms, int[] freqs, Map<String,String> spellings ) {
+        this.terms = terms;
+        this.freqs = freqs;
+        this.spellings = spellings;
+        precompute( "", 0, terms.length );
+    }
+
+
+    /**
+     * Creates a suggester with the arrays of the given one and the given delta.
+     */
+    protected TermSuggester( TermSuggester base, Map<String,Integer> delta, Map<String,String> spellings ) {
+        this.terms = base.terms;
+        this.freqs = base.freqs;
+        this.precomputed = base.precomputed;
+        this.delta = delta;
+        this.spellings = spellings;
+    }
+
+
+    /**
+     * Computes the proposals of the children of the given prefix, whose terms are
+     * in the given range, if they are short or their range is too big to be
+     * scanned. Recurses into the children.
+     */
+    protected void precompute( String prefix, int start, int end ) {
+        int l = prefix.length() + 1;
+        for (int i=start; i<end; ) {
+            if (terms[i].length() < l) {
+                i ++;
+                continue;
+            }
+            String child = terms[i].substring( 0, l );
+            int j = i + 1;
+            while (j < end && terms[j].startsWith( child )) {
+                j ++;
+            }
+            if (l <= PRECOMPUTED_PREFIX || j - i > MAX_SCAN) {
+                List<Integer> top = new ArrayList( MAX_PROPOSALS + 1 );
+                for (int k=i; k<j; k++) {
+                    insertTop( top, k );
+                }
+                precomputed.put( child, termsOf( top ) );
+                precompute( child, i, j );
+            }
+            i = j;
+        }
+    }
+
+
+    /**
+     * Inserts the given index into the list of indices of the most frequent
+     * terms, sorted by frequency.
+     */
+    protected void insertTop( List<Integer> top, int index ) {
+        int pos = top.size();
+        while (pos > 0 && freqs[top.get( pos-1 )] < freqs[index]) {
+            pos --;
+        }
+        if (pos < MAX_PROPOSALS) {
+            top.add( pos, index );
+            if (top.size() > MAX_PROPOSALS) {
+                top.remove( MAX_PROPOSALS );
+            }
+        }
+    }
+
+
+    protected List<String> termsOf( List<Integer> top ) {
+        String[] result = new String[top.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = terms[top.get( i )];
+        }
+        return Collections.unmodifiableList( Arrays.asList( result ) );
+    }
+
+
+    public int size() {
+        return terms.length;
+    }
+
+
+    /**
+     * The current frequency of the given term, including the {@link #delta}.
+     */
+    protected int freq( String term ) {
+        int i = Arrays.binarySearch( terms, term );
+        return (i >= 0 ? freqs[i] : 0) + delta.getOrDefault( term, 0 );
+    }
+
+
+    /**
+     * The most frequent terms starting with the given (lower case, folded)
+     * prefix, in their original spelling.
+     *
+     * @param maxResults The max number of results; at most {@link #MAX_PROPOSALS}.
+     */
+    public List<String> propose( String prefix, int maxResults ) {
+        List<String> result = proposeFolded( prefix );
+        result = maxResults < result.size() ? result.subList( 0, maxResults ) : result;
+        if (spellings.isEmpty()) {
+            return result;
+        }
+        return result.stream()
+                .map( term -> spellings.getOrDefault( term, term ) )
+                .collect( Collectors.toList() );
+    }
+
+
+    protected List<String> proposeFolded( String prefix ) {
+        List<String> result = precomputed.get( prefix );
+        if (result == null) {
+            if (prefix.length() <= PRECOMPUTED_PREFIX && delta.isEmpty()) {
+                return Collections.EMPTY_LIST;
+            }
+            // not precomputed: less than MAX_SCAN terms
+            int start = Arrays.binarySearch( terms, prefix );
+            start = start >= 0 ? start : -(start + 1);
+            List<Integer> top = new ArrayList( MAX_PROPOSALS + 1 );
+            for (int i=start; i<terms.length && i<start+MAX_SCAN+1 && terms[i].startsWith( prefix ); i++) {
+                insertTop( top, i );
+            }
+            result = termsOf( top );
+        }
+        if (!delta.isEmpty()) {
+            Set<String> candidates = new HashSet( result );
+            delta.keySet().stream().filter( term -> term.startsWith( prefix ) ).forEach( candidates::add );
+            result = candidates.stream()
+                    .map( term -> new SimpleEntry<String,Integer>( term, freq( term ) ) )
+                    .filter( entry -> entry.getValue() > 0 )
+                    .sorted( (e1, e2) -> e2.getValue() - e1.getValue() )
+                    .limit( MAX_PROPOSALS )
+                    .map( entry -> entry.getKey() )
+                    .collect( Collectors.toList() );
+        }
+        return result;
+    }
+
+
+    /**
+     * The terms within the given edit distance of the given term, ordered by
+     * distance and frequency. To avoid a scan of all terms, just the terms with
+     * the same first char and a length within the edit distance are checked, so
+     * a misspelled first char is never corrected. The search stops at the given
+     * deadline.
+     *
+     * @param term The lower case, folded term.
+     * @param maxEdits The max Levenshtein distance.
+     * @param maxResults The max number of results.
+     * @param deadline The {@link System#nanoTime()} to stop at.
+     */
+    public List<String> similar( String term, int maxEdits, int maxResults, long deadline ) {
+        if (term.isEmpty()) {
+            return Collections.EMPTY_LIST;
+        }
+        String first = term.substring( 0, 1 );
+        int start = Arrays.binarySearch( terms, first );
+        start = start >= 0 ? start : -(start + 1);
+        Map<String,Integer> matches = new HashMap();  // term -> distance
+        int[][] rows = new int[2][term.length() + 1];
+        for (int i=start; i<terms.length && terms[i].startsWith( first ); i++) {
+            if ((i - start) % 256 == 0 && System.nanoTime() > deadline) {
+                break;
+            }
+            if (Math.abs( terms[i].length() - term.length() ) <= maxEdits) {
+                int distance = distance( term, terms[i], maxEdits, rows );
+                if (distance <= maxEdits) {
+                    matches.put( terms[i], distance );
+                }
+            }
+        }
+        for (String candidate : delta.keySet()) {
+            if (candidate.startsWith( first ) && Math.abs( candidate.length() - term.length() ) <= maxEdits) {
+                int distance = distance( term, candidate, maxEdits, rows );
+                if (distance <= maxEdits) {
+                    matches.put( candidate, distance );
+                }
+            }
+        }
+        Map<String,Integer> current = new HashMap();
+        matches.keySet().forEach( match -> current.put( match, freq( match ) ) );
+        return matches.keySet().stream()
+                .filter( match -> current.get( match ) > 0 )
+                .sorted( (m1, m2) -> !matches.get( m1 ).equals( matches.get( m2 ) ) 
+                        ? matches.get( m1 ) - matches.get( m2 ) 
+                        : current.get( m2 ) - current.get( m1 ) )
+                .limit( maxResults )
+                .collect( Collectors.toList() );
+    }
+
+
+    /**
+     * The Levenshtein distance of the given Strings, or maxEdits+1 as soon as it
+     * is known to exceed maxEdits.
+     */
+    protected static int distance( String s1, String s2, int maxEdits, int[][] rows ) {
+        int[] prev = rows[0], curr = rows[1];
+        for (int j=0; j<=s1.length(); j++) {
+            prev[j] = j;
+        }
+        for (int i=1; i<=s2.length(); i++) {
+            curr[0] = i;
+            int rowMin = curr[0];
+            for (int j=1; j<=s1.length(); j++) {
+                int cost = s1.charAt( j-1 ) == s2.charAt( i-1 ) ? 0 : 1;
+                curr[j] = Math.min( Math.min( curr[j-1] + 1, prev[j] + 1 ), prev[j-1] + cost );
+                rowMin = Math.min( rowMin, curr[j] );
+            }
+            if (rowMin > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] swap = prev; prev = curr; curr = swap;
+        }
+        return prev[s1.length()];
+    }
+
+
+    /**
+     * Creates a new suggester with the changed frequencies of the given builder in
+     * its delta. Cheap as long as the delta is small; the delta is merged into the
+     * arrays if it grows beyond {@link #MAX_DELTA} or 1% of the terms.
+     */
+    public TermSuggester update( Builder builder ) {
+        Map<String,Integer> newDelta = new HashMap( delta );
+        builder.terms.forEach( (term, count) -> newDelta.merge( term, count, Integer::sum ) );
+        newDelta.values().removeIf( count -> count == 0 );
+        return newDelta.size() > Math.max( MAX_DELTA, terms.length / 100 )
+                ? merge( newDelta, builder.spellings )
+                : new TermSuggester( this, newDelta, mergeSpellings( builder.spellings ) );
+    }
+
+
+    /**
+     * Creates a new suggester with the terms of this, including the delta, and of
+     * the given builder. The frequencies of terms in both are added; terms whose
+     * frequency drops to 0 are removed.
+     */
+    public TermSuggester merge( Builder builder ) {
+        Map<String,Integer> changes = new HashMap( delta );
+        builder.terms.forEach( (term, count) -> changes.merge( term, count, Integer::sum ) );
+        return merge( changes, builder.spellings );
+    }
+
+
+    protected Map<String,String> mergeSpellings( Map<String,String> added ) {
+        if (added.isEmpty()) {
+            return spellings;
+        }
+        Map<String,String> result = new HashMap( added );
+        result.putAll( spellings );
+        return result;
+    }
+
+
+    protected TermSuggester merge( Map<String,Integer> changes, Map<String,String> addedSpellings ) {
+        String[] changed = changes.keySet().toArray( new String[changes.size()] );
+        Arrays.sort( changed );
+        String[] resultTerms = new String[terms.length + changed.length];
+        int[] resultFreqs = new int[resultTerms.length];
+        int i = 0, j = 0, size = 0;
+        while (i < terms.length || j < changed.length) {
+            int c = i == terms.length ? 1 : j == changed.length ? -1 : terms[i].compareTo( changed[j] );
+            String term = c <= 0 ? terms[i] : changed[j];
+            int freq = (c <= 0 ? freqs[i++] : 0) + (c >= 0 ? changes.get( changed[j++] ) : 0);
+            if (freq > 0) {
+                resultTerms[size] = term;
+                resultFreqs[size++] = freq;
+            }
+        }
+        String[] mergedTerms = Arrays.copyOf( resultTerms, size );
+        Map<String,String> mergedSpellings = new HashMap( mergeSpellings( addedSpellings ) );
+        mergedSpellings.keySet().removeIf( term -> Arrays.binarySearch( mergedTerms, term ) < 0 );
+        return new TermSuggester( mergedTerms, Arrays.copyOf( resultFreqs, size ), mergedSpellings );
+    }
+
+
+    /**
+     * Atomically writes this suggester to the given file.
+     */
+    public void store( File f ) throws IOException {
+        if (!delta.isEmpty()) {
+            merge( new Builder() ).store( f );
+            return;
+        }
+        File tmp = new File( f.getParentFile(), f.getName() + ".tmp" );
+        try (
+            BufferedWriter out = new BufferedWriter( new OutputStreamWriter( new GZIPOutputStream( new FileOutputStream( tmp ) ), UTF_8 ) );
+        ){
+            out.write( String.valueOf( terms.length ) );
+            out.newLine();
+            for (int i=0; i<terms.length; i++) {
+                out.write( terms[i] );
+                out.write( '\t' );
+                out.write( String.valueOf( freqs[i] ) );
+                String spelling = spellings.get( terms[i] );
+                if (spelling != null) {
+                    out.write( '\t' );
+                    out.write( spelling );
+                }
+                out.newLine();
+            }
+        }
+        Files.move( tmp.toPath(), f.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+}
@@ -16,8 +16,10 @@ package io.mapzone.atlas.sheet;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -26,6 +28,8 @@ import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
@@ -74,9 +78,14 @@ public class MarkdownScriptSheet {
             "([^$]+)\\$" +          // a script: $format(name)
             ")" );
 
+    // Identifiers in scripts
+    public static final Pattern  IDENTIFIER_PATTERN = Pattern.compile( "[a-zA-Z_][a-zA-Z0-9_]*" ); 
+
     // Invalid Groovy variable characters
     public static final Pattern  INVALID_VARIABLE_CHAR_PATTERN = Pattern.compile( "[^a-zA-Z0-9_]" ); 
 
+    public static final String   SCRIPT_IMPORTS = "import static io.mapzone.atlas.sheet.ScriptUtils.*;\n";
+
     public enum LayerSheet {
         TITLE, DESCRIPTION, DETAIL;
     }
@@ -96,6 +105,9 @@ public class MarkdownScriptSheet {
     
     private Map<String,Object>  variables = new HashMap();
 
+    /** Script -> compiled script; null if the scripts are not {@link #compile() compiled}. */
+    private Map<String,CompiledScript> compiled;
+
 
     public MarkdownScriptSheet( String markdown ) {
         this.markdown = markdown;
@@ -114,6 +126,60 @@ public class MarkdownScriptSheet {
         return Optional.ofNullable( StringUtils.isBlank( markdown ) ? null : markdown );
     }
 
+    /**
+     * The names of the variables referenced by this sheet: simple variable
+     * references and all identifiers of scripts. Identifiers of scripts may also
+     * be names of functions or local variables, so the result is a superset of
+     * the variables actually used.
+     */
+    public Set<String> referencedVariables() {
+        Set<String> result = new HashSet();
+        Matcher matcher = EMBEDDED_SCRIPT_PATTERN.matcher( markdown );
+        while (matcher.find()) {
+            if (matcher.group( 2 ) != null) {
+                result.add( matcher.group( 2 ) );
+            }
+            else {
+                String script = matcher.group( 3 ) != null ? matcher.group( 3 ) : matcher.group( 4 );
+                Matcher identifiers = IDENTIFIER_PATTERN.matcher( script );
+                while (identifiers.find()) {
+                    result.add( identifiers.group() );
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compiles the scripts of this sheet once, so that {@link #build(IProgressMonitor)}
+     * does not parse them again for every feature. The variables are bound
+     * per execution. Scripts that do not compile are executed as before, so
+     * that every build reports their error.
+     * <p/>
+     * A compiled sheet must not be used by several threads concurrently.
+     *
+     * @return this
+     */
+    public MarkdownScriptSheet compile() {
+        ScriptEngine engine = scriptEngineManager.getEngineByName( "groovy" );
+        compiled = new HashMap();
+        if (engine instanceof Compilable) {
+            Matcher matcher = EMBEDDED_SCRIPT_PATTERN.matcher( markdown );
+            while (matcher.find()) {
+                String script = matcher.group( 3 ) != null ? matcher.group( 3 ) : matcher.group( 4 );
+                if (script != null && !compiled.containsKey( script )) {
+                    try {
+                        compiled.put( script, ((Compilable)engine).compile( SCRIPT_IMPORTS + script ) );
+                    }
+                    catch (ScriptException e) {
+                        log.debug( "Not compiled: " + script + ": " + e.getLocalizedMessage() );
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
     /**
      * 
      * @return this
@@ -265,10 +331,14 @@ public class MarkdownScriptSheet {
     
     
     protected Object executeScript( String script ) throws ScriptException {
+        CompiledScript compiledScript = compiled != null ? compiled.get( script ) : null;
+        if (compiledScript != null) {
+            // variables assigned by the script must not leak into the next build
+            return compiledScript.eval( new SimpleBindings( new HashMap( variables ) ) );
+        }
         ScriptEngine engine = scriptEngineManager.getEngineByName( "groovy" );
         SimpleBindings bindings = new SimpleBindings( variables );
-        script = "import static io.mapzone.atlas.sheet.ScriptUtils.*;\n" + script;
-        return engine.eval( script, bindings );
+        return engine.eval( SCRIPT_IMPORTS + script, bindings );
     }
     
 }
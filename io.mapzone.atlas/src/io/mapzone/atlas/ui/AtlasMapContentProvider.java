@@ -17,7 +17,10 @@ package io.mapzone.atlas.ui;
 import static org.polymap.core.runtime.event.TypeEventFilter.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import java.beans.PropertyChangeEvent;
 
@@ -41,6 +44,7 @@ import org.polymap.core.runtime.event.EventManager;
 import io.mapzone.atlas.AtlasFeatureLayer;
 import io.mapzone.atlas.AtlasQuery;
 import io.mapzone.atlas.AtlasPropertyChangeEvent;
+import io.mapzone.atlas.AtlasSessionState.Cursor;
 
 /**
  * Provides the content of {@link AtlasMapPanel#mapViewer}.
@@ -65,6 +69,12 @@ public class AtlasMapContentProvider
     /** Last result of {@link #getElements(Object)}. */
     private List<ILayer>        backgroundLayers = new ArrayList();
 
+    /** The {@link AtlasQuery#queryText} the layers were last refreshed for. */
+    private Cursor              queryCursor;
+
+    /** Layer id -> {@link AtlasFeatureLayer#visible} last set to the {@link #viewer}. */
+    private Map<String,Boolean> visibility = new HashMap();
+
 
     @Override
     public void inputChanged( @SuppressWarnings("hiding") Viewer viewer, Object oldInput, Object newInput ) {
@@ -74,6 +84,7 @@ public class AtlasMapContentProvider
         
         this.map = (IMap)newInput;
         this.viewer = (MapViewer)viewer;
+        this.queryCursor = AtlasFeatureLayer.sessionState().cursor( "AtlasMapContentProvider", queryText() );
         
         // listen to AtlasFeatureLayer#visible and AtlasQquery#queryText
         EventManager.instance().subscribe( this, isType( AtlasPropertyChangeEvent.class, ev -> {
@@ -114,6 +125,7 @@ public class AtlasMapContentProvider
                 // atlas/feature layer
                 if (afl.featureLayer().get().isPresent()) {
                     featureLayers.add( layer );
+                    visibility.put( layer.id(), afl.visible.get() );
                 }
                 // background layer
                 else {
@@ -134,27 +146,33 @@ public class AtlasMapContentProvider
 
     @EventHandler( display=true, delay=500 )
     protected void onAtlasFeatureLayerChange( List<AtlasPropertyChangeEvent> evs ) {
-        // process just last event; skip previous event
-        AtlasPropertyChangeEvent ev = FluentIterable.from( evs ).last().get();
-        Config<Boolean> prop = ev.prop.get();
-
-        if (prop.equals( AtlasFeatureLayer.TYPE.visible )) {
-            viewer.setVisible( ((AtlasFeatureLayer)ev.getSource()).layer(), prop.get() );
-            //viewer.refresh();
-        }
-
-        else if (prop.equals( AtlasQuery.TYPE.queryText )) {
+        // pull the current state instead of processing the events, so that no
+        // change gets lost if several properties changed within the delay
+        if (queryCursor.advance( queryText() )) {
             for (ILayer l : featureLayers) {
                 // refresh remove()/add() layer in order to avoid layer.refresh()
                 // so after this the layer is visible by default
                 viewer.refresh( l, true );
-                viewer.setVisible( l, AtlasFeatureLayer.of( l ).visible.get() );
+                boolean visible = AtlasFeatureLayer.of( l ).visible.get();
+                viewer.setVisible( l, visible );
+                visibility.put( l.id(), visible );
             }
         }
-
         else {
-            throw new RuntimeException( "Unhandled event property type: " + prop );
+            for (ILayer l : featureLayers) {
+                boolean visible = AtlasFeatureLayer.of( l ).visible.get();
+                if (!Objects.equals( visibility.put( l.id(), visible ), visible )) {
+                    viewer.setVisible( l, visible );
+                }
+            }
         }
+        log.debug( "State: " + AtlasFeatureLayer.sessionState() );
+    }
+    
+    
+    protected String queryText() {
+        AtlasQuery query = AtlasFeatureLayer.sessionQuery();
+        return query.queryText.isPresent() ? query.queryText.get() : null;
     }
     
     
@@ -135,7 +135,8 @@ public class AtlasMapPanel
 
     private MapViewer<ILayer>           mapViewer;
 
-    private ReferencedEnvelope          currentExtent;
+    /** Publishes just the extent changes that may change the search result. */
+    private ExtentQuantizer             extentQuantizer = new ExtentQuantizer();
 
     private VectorLayer                 hoverLayer;
 
@@ -332,9 +333,10 @@ public class AtlasMapPanel
             CoordinateReferenceSystem crs = mapViewer.getMapCRS();
             ReferencedEnvelope newExtent = ReferencedEnvelope.create( 
                     new Envelope( extent.minx, extent.maxx, extent.miny, extent.maxy ), crs );
-            if (!newExtent.equals( currentExtent )) {
-                AtlasFeatureLayer.sessionQuery().mapExtent.set( currentExtent = newExtent );
-            }
+            extentQuantizer.apply( newExtent ).ifPresent( quantized -> {
+                AtlasFeatureLayer.sessionQuery().mapExtent.set( quantized );
+            });
+            log.debug( "Extent: " + extentQuantizer );
         });
     }
     
@@ -0,0 +1,114 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package io.mapzone.atlas.ui;
+
+import java.util.Optional;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import io.mapzone.atlas.AtlasQuery;
+
+/**
+ * Decides if a new extent of the map is to be published as
+ * {@link AtlasQuery#mapExtent}. The map reports every tiny move while panning;
+ * publishing each of them refreshes the search results and creates new filters
+ * for the pipelines.
+ * <p/>
+ * Moves smaller than one grid cell are ignored (hysteresis), as long as the
+ * published extent still contains the new extent of the map. The cell size is
+ * the power of 2 just below {@link #THRESHOLD} of the size of the extent, so it
+ * depends on the zoom level. Published extents are snapped outwards to this
+ * grid, so that extents that are about the same are actually equal, and the
+ * published extent always contains the map extent it was created for.
+ *
+ * @author Falko Bräutigam
+ */
+class ExtentQuantizer {
+
+    /**
+     * The min move, relative to the size of the extent, that is published
+     * (default: 0.02). 0 publishes every change.
+     */
+    public static final double      THRESHOLD = Double.parseDouble( System.getProperty( "io.mapzone.atlas.map.extentThreshold", "0.02" ) );
+
+    /**
+     * The grid cell size for the given extent: the power of 2 just below
+     * {@link #THRESHOLD} of its size.
+     */
+    public static double cellSize( ReferencedEnvelope extent ) {
+        double size = Math.max( extent.getWidth(), extent.getHeight() ) * THRESHOLD;
+        return size > 0 && !Double.isInfinite( size )
+                ? Math.pow( 2, Math.floor( Math.log( size ) / Math.log( 2 ) ) )
+                : 0;
+    }
+
+
+    // instance *******************************************
+
+    /** The last published extent, or null. */
+    private ReferencedEnvelope      published;
+
+    private int                     changes;
+
+    private int                     skipped;
+
+
+    /**
+     * Checks the given new extent of the map.
+     *
+     * @return The snapped extent to publish, or {@link Optional#empty()} if the
+     *         change is too small.
+     */
+    public Optional<ReferencedEnvelope> apply( ReferencedEnvelope extent ) {
+        changes ++;
+        double cell = cellSize( extent );
+        if (published != null && isSameCrs( extent.getCoordinateReferenceSystem() )
+                && published.contains( (Envelope)extent )
+                && Math.abs( extent.getMinX() - published.getMinX() ) < cell
+                && Math.abs( extent.getMaxX() - published.getMaxX() ) < cell
+                && Math.abs( extent.getMinY() - published.getMinY() ) < cell
+                && Math.abs( extent.getMaxY() - published.getMaxY() ) < cell) {
+            skipped ++;
+            return Optional.empty();
+        }
+        ReferencedEnvelope snapped = cell > 0
+                ? new ReferencedEnvelope( 
+                        Math.floor( extent.getMinX() / cell ) * cell, Math.ceil( extent.getMaxX() / cell ) * cell,
+                        Math.floor( extent.getMinY() / cell ) * cell, Math.ceil( extent.getMaxY() / cell ) * cell, 
+                        extent.getCoordinateReferenceSystem() )
+                : extent;
+        if (snapped.equals( published )) {
+            skipped ++;
+            return Optional.empty();
+        }
+        return Optional.of( published = snapped );
+    }
+
+
+    protected boolean isSameCrs( CoordinateReferenceSystem crs ) {
+        CoordinateReferenceSystem publishedCrs = published.getCoordinateReferenceSystem();
+        return crs == publishedCrs || (crs != null && crs.equals( publishedCrs ));
+    }
+
+
+    @Override
+    public String toString() {
+        return "ExtentQuantizer[changes=" + changes + ", skipped=" + skipped + "]";
+    }
+
+}
@@ -83,6 +83,9 @@ public class GlyphRenderer
     private double              mapWidthPerPixel;
 
     private Consumer<Image>     consumer;
+
+    /** The renderer while {@link #runWithException(IProgressMonitor)}. */
+    private volatile StreamingRenderer renderer;
     
 
     /**
@@ -145,7 +148,10 @@ public class GlyphRenderer
         g.clearRect( 0, 0, imageSize, imageSize );
 
         // renderer
-        StreamingRenderer renderer = new NoThreadStreamingRenderer();
+        renderer = new NoThreadStreamingRenderer();
+        if (monitor.isCanceled()) {
+            return;
+        }
 
         MapContent mapContent = new MapContent();
         mapContent.getViewport().setCoordinateReferenceSystem( crs );
@@ -172,6 +178,11 @@ public class GlyphRenderer
         Rectangle paintArea = new Rectangle( imageSize, imageSize );
         renderer.paint( g, paintArea, mapArea );
         mapContent.dispose();
+        renderer = null;
+        if (monitor.isCanceled()) {
+            log.debug( "Glyph renderer: cancelled after " + t.elapsedTime() + "ms" );
+            return;
+        }
         
         // result
         ImageData imageData = convertToSWT( result );
@@ -183,6 +194,19 @@ public class GlyphRenderer
     }
     
     
+    /**
+     * Stops the renderer if this job is cancelled while rendering, for example by
+     * {@link io.mapzone.atlas.AtlasQuery.Token}.
+     */
+    @Override
+    protected void canceling() {
+        StreamingRenderer current = renderer;
+        if (current != null) {
+            current.stopRendering();
+        }
+    }
+    
+    
     /**
      * 
      *
@@ -14,10 +14,14 @@
  */
 package io.mapzone.atlas.ui;
 
+import static org.polymap.core.data.DataPlugin.ff;
 import static org.polymap.core.runtime.UIThreadExecutor.logErrorMsg;
 import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -26,16 +30,24 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
 
 import java.io.IOException;
 
+import org.geotools.data.Query;
 import org.opengis.feature.Feature;
+import org.opengis.filter.Filter;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.FluentIterable;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
 
 import org.eclipse.jface.viewers.ILazyTreeContentProvider;
 import org.eclipse.jface.viewers.TreePath;
@@ -59,6 +71,7 @@ import org.polymap.p4.layer.FeatureLayer;
 import io.mapzone.atlas.AtlasFeatureLayer;
 import io.mapzone.atlas.AtlasQuery;
 import io.mapzone.atlas.AtlasPropertyChangeEvent;
+import io.mapzone.atlas.AtlasSessionState.Cursor;
 
 /**
  * Provides {@link ILayer}s of an {@link IMap} and the features thereof. 
@@ -91,6 +104,12 @@ public class SearchContentProvider
 
     private ConcurrentMap<Object,Object[]> cache = new ConcurrentHashMap( 32 );
     
+    /** The {@link AtlasQuery.Token} of the last load started for a layer. */
+    private ConcurrentMap<Object,AtlasQuery.Token> loads = new ConcurrentHashMap( 32 );
+    
+    /** The state of the {@link AtlasFeatureLayer#sessionQuery()} the viewer shows. */
+    private Cursor                      queryCursor = AtlasFeatureLayer.sessionState().cursor( "SearchContentProvider" );
+    
     
     public SearchContentProvider() {
         EventManager.instance().subscribe( this, ifType( AtlasPropertyChangeEvent.class, ev -> { 
@@ -115,9 +134,12 @@ public class SearchContentProvider
 
     @EventHandler( display=true, delay=1000 )
     public void onLayerQueryChange( List<AtlasPropertyChangeEvent> evs ) {
-        log.debug( "Refreshing viewer..." );
-        // just refresh() does not always properly reflect structural changes
-        viewer.setInput( input );  //refresh();
+        // pull the current state; the events just tell that it has changed
+        if (queryCursor.advance( AtlasFeatureLayer.sessionQuery().state() )) {
+            log.debug( "Refreshing viewer... (" + AtlasFeatureLayer.sessionState() + ")" );
+            // just refresh() does not always properly reflect structural changes
+            viewer.setInput( input );  //refresh();
+        }
     }
     
     /**
@@ -125,6 +147,7 @@ public class SearchContentProvider
      */
     public void flush() {
         cache.clear();
+        loads.clear();
     }
 
     
@@ -198,18 +221,84 @@ public class SearchContentProvider
 
 
     /**
-     *
+     * Loads the features of the given layer in a job. The job is cancelled, and
+     * its result is discarded, if the {@link AtlasQuery} changes meanwhile; the
+     * viewer is refreshed with the new state anyway, unless the state returns
+     * to the one the viewer shows (see {@link #discarded(ILayer, AtlasQuery.Token)}).
      */
     protected void updateLayer( ILayer elm, int currentChildCount ) {
         updateChildrenLoading( elm );
 
-        UIJob.schedule( elm.label.get(), monitor -> {
-            FeatureLayer fl = FeatureLayer.of( elm ).get().get();
-            PipelineFeatureSource fs = fl.featureSource();
-            // the AtlasQuery is done by AtlasQueryFilterProcessor in the pipeline
-            Object[] children = fs.getFeatures().toArray();
-            updateChildren( elm, children, currentChildCount );               
+        AtlasQuery atlasQuery = AtlasFeatureLayer.sessionQuery();
+        AtlasQuery.Token token = atlasQuery.token();
+        loads.put( elm, token );
+        UIJob job = token.register( new UIJob( elm.label.get() ) {
+            @Override 
+            protected void runWithException( IProgressMonitor monitor ) throws Exception {
+                FeatureLayer fl = FeatureLayer.of( elm ).get().get();
+                PipelineFeatureSource fs = fl.featureSource();
+                // the AtlasQuery is done by AtlasQueryFilterProcessor in the pipeline;
+                // just load the best maxResults features
+                Query query = new Query();
+                query.setMaxFeatures( maxResults.get() );
+                Optional<List<String>> ranked = atlasQuery.rankedIds( elm, maxResults.get() );
+                if (ranked.isPresent()) {
+                    query.setFilter( ranked.get().isEmpty() ? Filter.EXCLUDE
+                            : ff.id( FluentIterable.from( ranked.get() ).transform( id -> ff.featureId( id ) ).toSet() ) );
+                }
+                if (monitor.isCanceled() || token.isCancelled()) {
+                    return;
+                }
+                Object[] children = fs.getFeatures( query ).toArray();
+                if (ranked.isPresent()) {
+                    Map<String,Integer> ranks = new HashMap( ranked.get().size() * 2 );
+                    ranked.get().forEach( id -> ranks.put( id, ranks.size() ) );
+                    Arrays.sort( children, Comparator.comparing( f -> 
+                            ranks.getOrDefault( ((Feature)f).getIdentifier().getID(), Integer.MAX_VALUE ) ) );
+                }
+                // the labels just read the texts rendered at index time
+                try {
+                    atlasQuery.loadRenderedSheets( elm, Arrays.stream( children ).map( f -> (Feature)f ).collect( Collectors.toList() ) );
+                }
+                catch (Exception e) {
+                    // rendered on demand
+                    log.warn( "Rendered sheets: " + e.getLocalizedMessage() );
+                }
+                // late result of an old query
+                if (monitor.isCanceled() || token.isCancelled()) {
+                    log.debug( "Discarding result of: " + elm.label.get() );
+                    return;
+                }
+                updateChildren( elm, children, currentChildCount );
+            }
+        });
+        // also if the job was cancelled before it ran
+        job.addJobChangeListener( new JobChangeAdapter() {
+            @Override public void done( IJobChangeEvent ev ) {
+                if (token.isCancelled()) {
+                    discarded( elm, token );
+                }
+            }
         });
+        job.schedule();
+    }
+
+
+    /**
+     * Called if the load of the given layer was cancelled by the given token.
+     * If the query has changed to a new state, {@link #onLayerQueryChange(List)}
+     * refreshes the viewer. If it has returned to the state the viewer shows,
+     * there is no refresh, and the layer would stay {@link #CACHE_LOADING}
+     * forever; so it is loaded again.
+     */
+    protected void discarded( ILayer elm, AtlasQuery.Token token ) {
+        UIThreadExecutor.async( () -> {
+            if (loads.get( elm ) == token && cache.get( elm ) == CACHE_LOADING
+                    && queryCursor.isSeen( AtlasFeatureLayer.sessionQuery().state() )) {
+                log.debug( "Reloading discarded: " + elm.label.get() );
+                updateLayer( elm, 1 );
+            }
+        }, logErrorMsg( "" ) );
     }
 
 
@@ -41,6 +41,7 @@ import org.eclipse.jface.viewers.StructuredSelection;
 import org.eclipse.jface.viewers.ViewerCell;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 
 import org.polymap.core.data.feature.DefaultStyles;
 import org.polymap.core.mapeditor.MapViewer;
@@ -279,19 +280,41 @@ public class SearchPanel
                             shell.setLocation( shell.getLocation().x, shell.getLocation().y-125 );
                         }
                     });
-                });
+                }).schedule();
             })
             .addOkAction( "Schließen", () -> {
                 return true;
             });
         
-        new ScriptJob( f, LayerSheet.TITLE, t -> 
-                dialog.getShell().setText( StringUtils.abbreviate( t, 32 ) ) );
+        Optional<String> title = renderedSheet( f, LayerSheet.TITLE );
+        if (title.isPresent()) {
+            dialog.getShell().setText( StringUtils.abbreviate( title.get(), 32 ) );
+        }
+        else {
+            new ScriptJob( f, LayerSheet.TITLE, t -> 
+                    dialog.getShell().setText( StringUtils.abbreviate( t, 32 ) ) ).schedule();
+        }
         dialog.setBlockOnOpen( false );
         dialog.open();
     }
     
     
+    /**
+     * The text of the given sheet rendered at index time, if any; otherwise the
+     * sheet has to be rendered by a {@link ScriptJob}.
+     */
+    protected Optional<String> renderedSheet( Feature f, LayerSheet sheet ) {
+        try {
+            ILayer layer = (ILayer)contentProvider.getParent( f );
+            return AtlasFeatureLayer.sessionQuery().renderedSheet( layer, f, sheet );
+        }
+        catch (Exception e) {
+            log.debug( "Rendered sheet: " + e.getLocalizedMessage() );
+            return Optional.empty();
+        }
+    }
+    
+    
     /** 
      * Fires {@link FeatureClickEvent}. 
      */
@@ -374,11 +397,17 @@ public class SearchPanel
             }
             // Feature
             else if (elm instanceof Feature) {
-                new ScriptJob( (Feature)elm, LayerSheet.TITLE, text -> { 
-                    // widget is disposed because of async job
-                    try { cell.setText( text ); }
-                    catch (SWTException e) { log.warn( e.getLocalizedMessage() ); }
-                });
+                Optional<String> rendered = renderedSheet( (Feature)elm, LayerSheet.TITLE );
+                if (rendered.isPresent()) {
+                    cell.setText( rendered.get() );
+                }
+                else {
+                    AtlasFeatureLayer.sessionQuery().token().register( new ScriptJob( (Feature)elm, LayerSheet.TITLE, text -> { 
+                        // widget is disposed because of async job
+                        try { cell.setText( text ); }
+                        catch (SWTException e) { log.warn( e.getLocalizedMessage() ); }
+                    })).schedule();
+                }
             }
             else {
                 throw new IllegalStateException( "Unknown element type: " + elm );
@@ -406,11 +435,17 @@ public class SearchPanel
             }
             // Feature
             else if (elm instanceof Feature) {
-                new ScriptJob( (Feature)elm, LayerSheet.DESCRIPTION, text -> {
-                    // widget is disposed because of async job
-                    try { cell.setText( text ); }
-                    catch (SWTException e) { log.warn( e.getLocalizedMessage() ); }
-                });
+                Optional<String> rendered = renderedSheet( (Feature)elm, LayerSheet.DESCRIPTION );
+                if (rendered.isPresent()) {
+                    cell.setText( rendered.get() );
+                }
+                else {
+                    AtlasFeatureLayer.sessionQuery().token().register( new ScriptJob( (Feature)elm, LayerSheet.DESCRIPTION, text -> {
+                        // widget is disposed because of async job
+                        try { cell.setText( text ); }
+                        catch (SWTException e) { log.warn( e.getLocalizedMessage() ); }
+                    })).schedule();
+                }
             }
             else {
                 throw new IllegalStateException( "Unknown element type: " + elm );
@@ -441,7 +476,8 @@ public class SearchPanel
                 log.debug( "Extent: " + atlasMapViewer.get().mapExtent.get().getWidth() );
                 double mapWidth = atlasMapViewer.get().mapExtent.get().getWidth();
                 double imageWidth = atlasMapViewer.get().getControl().getSize().x;
-                new GlyphRenderer( (Feature)elm, style, 28, mapWidth / imageWidth ).start( image -> {
+                AtlasFeatureLayer.sessionQuery().token().register( 
+                        new GlyphRenderer( (Feature)elm, style, 28, mapWidth / imageWidth ) ).start( image -> {
                     try {
                         cell.setImage( (Image)image );
                     }
@@ -458,7 +494,9 @@ public class SearchPanel
 
     
     /**
-     * 
+     * Builds a sheet and passes the text to a consumer in the display thread.
+     * Not scheduled by the constructor, so that the job can be registered with
+     * the {@link io.mapzone.atlas.AtlasQuery.Token} before it runs.
      */
     protected class ScriptJob
             extends UIJob {
@@ -474,7 +512,6 @@ public class SearchPanel
             this.layerSheet = layerSheet;
             this.feature = feature;
             this.consumer = consumer;
-            schedule();
         }
 
         @Override
@@ -486,10 +523,17 @@ public class SearchPanel
                 sheet.setStandardVariables( layer, feature );
                 String text = sheet.build( monitor );
                 log.debug( "Script " + layerSheet + ": " + timer.elapsedTime() + "ms" );
+                // cancelled by AtlasQuery#token() while the sheet was built
+                if (monitor.isCanceled()) {
+                    return;
+                }
                 UIThreadExecutor.async( () -> {
                     consumer.accept( text );
                 });
             }
+            catch (OperationCanceledException e) {
+                // AtlasQuery has changed
+            }
             catch (Exception e) {
                 // don't bother client UI
                 log.warn( "", e );